@@ -0,0 +1,54 @@
+package pixelTeleporter.library;
+
+/**
+ Art-Net receiver transport.
+ <p>
+ Listens for ArtDMX packets and decodes mapped universes into the
+ frame buffer (see UniverseTransport).  ArtSync packets, if the controller
+ sends them, gate frame commits.
+*/
+class ArtNetTransport extends UniverseTransport {
+	final static int ARTNET_PORT = 6454;
+
+	// "Art-Net\0" packet id
+	final static long ARTNET_ID = 0x4172742D4E657400L;
+	final static int OP_DMX = 0x5000;
+	final static int OP_SYNC = 0x5200;
+	final static int DMX_HEADER_SIZE = 18;
+
+	ArtNetTransport(int port) {
+		super(port);
+	}
+
+	void receive(int length) {
+		int opcode;
+
+		if ((length < 10) || (buffer.getLong(0) != ARTNET_ID)) return;
+
+		// opcode is little endian
+		opcode = (buffer.get(8) & 0xFF) | ((buffer.get(9) & 0xFF) << 8);
+		if (opcode == OP_DMX) {
+			receiveDmx(length);
+		}
+		else if (opcode == OP_SYNC) {
+			receiveSync();
+		}
+	}
+
+	/**
+	 * Decodes an ArtDMX packet's data into its universe's block of pixels
+	 */
+	void receiveDmx(int length) {
+		int u,i;
+
+		if (length < DMX_HEADER_SIZE) return;
+
+		// 15 bit port address: net in byte 15, subnet/universe in byte 14
+		u = ((buffer.get(15) & 0x7F) << 8) | (buffer.get(14) & 0xFF);
+		i = universes.lookup(u);
+		if (i < 0) return;
+
+		receiveUniverse(i,DMX_HEADER_SIZE,
+			Math.min(buffer.getShort(16) & 0xFFFF,length - DMX_HEADER_SIZE));
+	}
+}
@@ -0,0 +1,168 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Writes JPEG frames to a Motion JPEG AVI file, which just about every
+ player and video editor can read.  Frames are appended as they come, and
+ the headers, which need the frame count and sizes, are filled in by close().
+ <p>
+ This is the original AVI 1.0 format, with 32 bit sizes and an idx1 index,
+ so files are limited to MAX_SIZE.  All numbers are little endian.
+ <pre>
+ RIFF "AVI "
+   LIST "hdrl"
+     "avih" main header
+     LIST "strl"
+       "strh" stream header, "vids" "MJPG"
+       "strf" BITMAPINFOHEADER
+   LIST "movi"
+     "00dc" JPEG data, one chunk per frame, padded to an even size
+   "idx1" offset and size of each chunk, from the "movi" list type
+ </pre>
+*/
+class AviWriter {
+	final static int MOVI_START = 224;              // first chunk, after the headers
+	final static int MOVI_TYPE = MOVI_START - 4;    // "movi", where idx1 offsets are measured from
+	final static int AVIF_HASINDEX = 0x10;
+	final static int AVIIF_KEYFRAME = 0x10;
+	// Readers disagree about sizes past 2GB, so stop there.
+	final static long MAX_SIZE = Integer.MAX_VALUE;
+
+	RandomAccessFile file;
+	FileChannel channel;
+	int width,height;
+	float frameRate;
+
+	long end = MOVI_START;          // file offset of end of data
+	int frames;
+	int[] sizes = new int[1024];    // size of each frame's chunk data
+	int largest;
+	ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Creates a new video file, replacing any file of the same name.
+	 */
+	AviWriter(String filename,int width,int height,float frameRate) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.frameRate = frameRate;
+		file = new RandomAccessFile(filename,"rw");
+		file.setLength(0);
+		channel = file.getChannel();
+	}
+
+	/**
+	 * Appends a frame, encoded as a JPEG image
+	 */
+	void addFrame(byte[] jpeg,int length) throws IOException {
+		int padded = (length + 1) & ~1;
+		long indexSize = 8 + 16L * (frames + 1);
+
+		if (end + 8 + padded + indexSize > MAX_SIZE) {
+			throw new IOException("Video is too big for an AVI file. Try a lower frame rate or size.");
+		}
+		chunk.clear();
+		fourcc(chunk,"00dc").putInt(length).flip();
+		channel.write(chunk,end);
+		channel.write(ByteBuffer.wrap(jpeg,0,length),end + 8);
+		if (padded != length) channel.write(ByteBuffer.wrap(new byte[1]),end + 8 + length);
+
+		if (frames == sizes.length) sizes = Arrays.copyOf(sizes,frames * 2);
+		sizes[frames++] = length;
+		largest = Math.max(largest,length);
+		end += 8 + padded;
+	}
+
+	/**
+	 * Writes the index and headers, and closes the file
+	 */
+	void close() throws IOException {
+		try {
+			writeIndex();
+			writeHeaders();
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	void writeIndex() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(8 + 16 * frames).order(ByteOrder.LITTLE_ENDIAN);
+		long off = MOVI_START - MOVI_TYPE;
+
+		fourcc(b,"idx1").putInt(16 * frames);
+		for (int i = 0; i < frames; i++) {
+			fourcc(b,"00dc").putInt(AVIIF_KEYFRAME).putInt((int) off).putInt(sizes[i]);
+			off += 8 + ((sizes[i] + 1) & ~1);
+		}
+		b.flip();
+		channel.write(b,end);
+	}
+
+	void writeHeaders() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(MOVI_START).order(ByteOrder.LITTLE_ENDIAN);
+		int rate = Math.round(frameRate * 1000);
+		long fileSize = end + 8 + 16 * frames;
+
+		fourcc(b,"RIFF").putInt((int) (fileSize - 8));
+		fourcc(b,"AVI ");
+		fourcc(b,"LIST").putInt(192);
+		fourcc(b,"hdrl");
+
+		fourcc(b,"avih").putInt(56);
+		b.putInt(Math.round(1e6f / frameRate));     // microseconds per frame
+		b.putInt((int) Math.min(Integer.MAX_VALUE,(long) largest * Math.round(frameRate)));
+		b.putInt(0);                                // padding granularity
+		b.putInt(AVIF_HASINDEX);
+		b.putInt(frames);
+		b.putInt(0);                                // initial frames
+		b.putInt(1);                                // streams
+		b.putInt(largest + 8);                      // suggested buffer size
+		b.putInt(width).putInt(height);
+		b.putInt(0).putInt(0).putInt(0).putInt(0);  // reserved
+
+		fourcc(b,"LIST").putInt(116);
+		fourcc(b,"strl");
+		fourcc(b,"strh").putInt(56);
+		fourcc(b,"vids");
+		fourcc(b,"MJPG");
+		b.putInt(0);                                // flags
+		b.putShort((short) 0).putShort((short) 0);  // priority, language
+		b.putInt(0);                                // initial frames
+		b.putInt(1000).putInt(rate);                // scale, rate: rate / scale frames per second
+		b.putInt(0);                                // start
+		b.putInt(frames);                           // length
+		b.putInt(largest + 8);
+		b.putInt(-1);                               // quality: default
+		b.putInt(0);                                // sample size: varies
+		b.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+
+		fourcc(b,"strf").putInt(40);
+		b.putInt(40);                               // BITMAPINFOHEADER size
+		b.putInt(width).putInt(height);
+		b.putShort((short) 1).putShort((short) 24); // planes, bits per pixel
+		fourcc(b,"MJPG");
+		b.putInt(width * height * 3);
+		b.putInt(0).putInt(0).putInt(0).putInt(0);  // resolution and palette
+
+		fourcc(b,"LIST").putInt((int) (end - MOVI_TYPE));
+		fourcc(b,"movi");
+		b.flip();
+		channel.write(b,0);
+	}
+
+	static ByteBuffer fourcc(ByteBuffer b,String code) {
+		for (int i = 0; i < 4; i++) {
+			b.put((byte) code.charAt(i));
+		}
+		return b;
+	}
+}
@@ -0,0 +1,258 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Shared receive engine for all of a sketch's UDP transports. A single
+ thread sleeps in a single Selector, with one channel per local port no
+ matter how many transports use it, and drains every waiting datagram
+ into one reusable direct buffer.
+ <p>
+ Each datagram is handed to the transport listening for its exact source
+ address, or failing that, its source host.  If there isn't one, it goes
+ to every transport on the port that accepts any source -- several Art-Net
+ PixelTeleporters with different universes can share port 6454, for
+ example.
+ <p>
+ The receiver thread starts when the first transport starts, and is a
+ daemon thread, so it won't keep the sketch from exiting.  Ports are closed
+ when the last transport using them stops.  It's shared by every transport,
+ so an exception from one of them is printed and the thread carries on.
+*/
+class DatagramMux implements Runnable {
+	final static int BUFFER_SIZE = 65536;     // largest possible UDP datagram
+	final static int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+	static DatagramMux shared;
+
+	/**
+	 * One bound local port, and the transports listening on it.
+	 * Dispatch tables are touched by the receiver thread only.
+	 */
+	static class Port {
+		int port;
+		DatagramChannel channel;
+		int users;                                   // transports using the channel, guarded by the mux
+		HashMap<SocketAddress,DatagramTransport> bySource = new HashMap<SocketAddress,DatagramTransport>();
+		HashMap<InetAddress,DatagramTransport> byHost = new HashMap<InetAddress,DatagramTransport>();
+		ArrayList<DatagramTransport> anySource = new ArrayList<DatagramTransport>();
+	}
+
+	HashMap<Integer,Port> ports = new HashMap<Integer,Port>();   // guarded by this
+	ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	ArrayList<DatagramTransport> active = new ArrayList<DatagramTransport>(); // receiver thread only
+
+	volatile Selector selector;
+	ByteBuffer buffer;
+	Thread thread;                                              // guarded by this
+
+	static synchronized DatagramMux get() {
+		if (shared == null) shared = new DatagramMux();
+		return shared;
+	}
+
+	DatagramMux() {
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns the channel bound to a local port, opening it with the
+	 * transport's openChannel() if no other transport is using the port.
+	 */
+	synchronized DatagramChannel open(DatagramTransport t,int port) throws IOException {
+		Port p = ports.get(port);
+		if (p == null) {
+			p = new Port();
+			p.port = port;
+			p.channel = t.openChannel();
+			p.channel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+			p.channel.setOption(StandardSocketOptions.SO_RCVBUF,RECEIVE_BUFFER_SIZE);
+			p.channel.bind(new InetSocketAddress(port));
+			p.channel.configureBlocking(false);
+			ports.put(port,p);
+		}
+		p.users++;
+		t.port = p;
+		return p.channel;
+	}
+
+	/**
+	 * Starts delivering datagrams to a transport, starting the receiver
+	 * thread if it isn't already running.  The transport's port must have
+	 * been opened with open().
+	 */
+	synchronized void attach(final DatagramTransport t) throws IOException {
+		if (t.port == null) throw new IOException("PixelTeleporter transport has no open port");
+		if (thread == null) {
+			selector = Selector.open();
+			thread = new Thread(this,"PixelTeleporter UDP");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		final Port p = t.port;
+		t.buffer = buffer;
+
+		pending.add(new Runnable() {
+			public void run() {
+				try {
+					if (p.channel.keyFor(selector) == null) {
+						p.channel.register(selector,SelectionKey.OP_READ,p);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (t.source == null) {
+					p.anySource.add(t);
+				}
+				else {
+					p.bySource.put(t.source,t);
+					p.byHost.put(t.source.getAddress(),t);
+				}
+				active.add(t);
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops delivering datagrams to a transport and releases its port.
+	 */
+	synchronized void detach(final DatagramTransport t,boolean attached) {
+		final Port p = t.port;
+		final boolean close = (--p.users == 0);
+		if (close) ports.remove(p.port);
+
+		if (attached) {
+			pending.add(new Runnable() {
+				public void run() {
+					p.anySource.remove(t);
+					if (t.source != null) {
+						p.bySource.remove(t.source);
+						if (p.byHost.get(t.source.getAddress()) == t) p.byHost.remove(t.source.getAddress());
+					}
+					active.remove(t);
+					if (close) closePort(p);
+				}
+			});
+			selector.wakeup();
+		}
+		else if (close) {
+			closePort(p);
+		}
+	}
+
+	/**
+	 * Wakes the receiver thread, so it picks up changes to transports'
+	 * periodic work schedules.
+	 */
+	void wakeup() {
+		Selector sel = selector;
+		if (sel != null) sel.wakeup();
+	}
+
+	void closePort(Port p) {
+		try {
+			p.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			waitForDatagrams();
+		}
+	}
+
+	/**
+	 * Blocks in the selector until datagrams arrive, then hands each of
+	 * them to the transports that want it. Wakes up early if a transport
+	 * has periodic work to do.
+	 */
+	void waitForDatagrams() {
+		Runnable r;
+		long wait,w;
+
+		while ((r = pending.poll()) != null) {
+			try {
+				r.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			wait = 0;
+			for (int i = 0; i < active.size(); i++) {
+				w = active.get(i).beforeWait();
+				if ((w > 0) && ((wait == 0) || (w < wait))) wait = w;
+			}
+			selector.select(wait);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) drain((Port) key.attachment());
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Receives every datagram waiting on a port and dispatches it.
+	 */
+	void drain(Port p) throws IOException {
+		SocketAddress from;
+		DatagramTransport t;
+		int length;
+
+		while (true) {
+			buffer.clear();
+			from = p.channel.receive(buffer);
+			if (from == null) break;
+			length = buffer.position();
+
+			t = p.bySource.get(from);
+			if ((t == null) && !p.byHost.isEmpty()) {
+				t = p.byHost.get(((InetSocketAddress) from).getAddress());
+			}
+			if (t != null) {
+				dispatch(t,length);
+			}
+			else {
+				for (int i = 0; i < p.anySource.size(); i++) {
+					dispatch(p.anySource.get(i),length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands a datagram to a transport.  A transport that throws on a bad
+	 * packet loses that packet, not the receiver thread.
+	 */
+	void dispatch(DatagramTransport t,int length) {
+		try {
+			t.dispatch(length);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Base class for UDP transports.  Datagrams are received by the shared
+ DatagramMux thread, which sleeps in a Selector until they arrive, so
+ no CPU is used between frames, and many transports cost no more threads
+ than one.  Each datagram is handed to receive() in a single, reusable
+ direct buffer.  Nothing is allocated per packet.
+*/
+abstract class DatagramTransport extends PixelTransport {
+	DatagramMux mux;
+	DatagramMux.Port port;          // local port, set by the mux
+	DatagramChannel channel;
+	ByteBuffer buffer;              // receive buffer, set by the mux
+	InetSocketAddress source;       // only accept datagrams from here. null == any
+	boolean attached;
+
+	DatagramTransport(int port) {
+		super();
+		mux = DatagramMux.get();
+		try {
+			channel = mux.open(this,port);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens the channel, if no other transport has already opened
+	 * one on this port.  Called from the constructor, before the subclass
+	 * is initialized.
+	 */
+	DatagramChannel openChannel() throws IOException {
+		return DatagramChannel.open();
+	}
+
+	/**
+	 * Handles one datagram, which is in buffer at positions 0 to length-1.
+	 */
+	abstract void receive(int length);
+
+	/**
+	 * Called by the mux thread before it goes to sleep.  Returns
+	 * the maximum time to sleep in milliseconds, or 0 to wait for data
+	 * indefinitely.  Subclasses can use this to do periodic work.
+	 */
+	long beforeWait() {
+		return 0;
+	}
+
+	/**
+	 * Called by the mux thread after each datagram has been handled and
+	 * timed.  Subclasses that ask for frames send their requests here, so
+	 * the decode time metric doesn't include the send.
+	 */
+	void afterReceive() {
+		;
+	}
+
+	public void start() {
+		super.start();
+		try {
+			mux.attach(this);
+			attached = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void stop() {
+		super.stop();
+		if (port != null) mux.detach(this,attached);
+		port = null;
+		attached = false;
+	}
+
+	/**
+	 * Called by the mux for each datagram addressed to this transport
+	 */
+	void dispatch(int length) {
+		long t = System.nanoTime();
+		lastActivity = (int) (t / 1000000L);
+		receive(length);
+		frames.metrics.received(length,System.nanoTime() - t);
+		afterReceive();
+	}
+
+	/**
+	 * Decodes RGB pixels from the receive buffer into dest.
+	 * See PixelTransport.decodePixels().
+	 */
+	int decodePixels(int offset,int length,int[] dest,int pix) {
+		return decodePixels(buffer,offset,length,dest,pix);
+	}
+}
@@ -0,0 +1,102 @@
+package pixelTeleporter.library;
+
+import java.nio.ByteBuffer;
+
+/**
+ DDP (Distributed Display Protocol) receiver transport.
+ <p>
+ Each packet carries a block of pixel data and its byte offset in the
+ display, which is decoded straight from the receive buffer into the back
+ buffer.  The frame is published when a packet with the PUSH flag arrives.
+ Pixels not sent in a frame keep their previous contents.
+*/
+class DdpTransport extends DatagramTransport {
+	final static int DDP_PORT = 4048;
+
+	// header flags (byte 0)
+	final static int FLAG_VERSION_MASK = 0xC0;
+	final static int FLAG_VERSION_1 = 0x40;
+	final static int FLAG_TIMECODE = 0x10;
+	final static int FLAG_QUERY = 0x02;
+	final static int FLAG_PUSH = 0x01;
+
+	// destination ids (byte 3) that address the display
+	final static int ID_DISPLAY = 1;
+	final static int ID_ALL = 255;
+
+	final static int HEADER_SIZE = 10;
+	final static int TIMECODE_SIZE = 4;
+
+	// Largest display we'll accept. Anything bigger is garbage.
+	final static int MAX_FRAME_PIXELS = 1 << 20;
+
+	int framePixels;                // receiver thread only
+	ByteBuffer partial;             // bytes of a pixel split between packets
+
+	DdpTransport(int port) {
+		super(port);
+		partial = ByteBuffer.allocate(8);
+	}
+
+	/**
+	 * Stores some of the bytes of a pixel that doesn't fit in one
+	 * packet, and decodes it with the bytes received so far.  The rest
+	 * normally arrive at the start of the next packet.
+	 * @param channel byte offset in the display of the first byte
+	 * @param data position of the bytes in the receive buffer
+	 * @param n number of bytes, all in the same pixel
+	 */
+	void putPartial(int[] dest,int channel,int data,int n) {
+		int bpp = format.bytesPerPixel;
+		for (int i = 0; i < n; i++) {
+			partial.put((channel + i) % bpp,buffer.get(data + i));
+		}
+		decodePixels(partial,0,bpp,dest,channel / bpp);
+	}
+
+	void receive(int length) {
+		int flags,id,offset,bytes,data,pix,bpp,n;
+		int[] dest;
+
+		if (length < HEADER_SIZE) return;
+
+		flags = buffer.get(0) & 0xFF;
+		id = buffer.get(3) & 0xFF;
+		if (((flags & FLAG_VERSION_MASK) != FLAG_VERSION_1) || ((flags & FLAG_QUERY) != 0)) return;
+		if ((id != ID_DISPLAY) && (id != ID_ALL) && (id != 0)) return;
+
+		offset = buffer.getInt(4);
+		bytes = buffer.getShort(8) & 0xFFFF;
+		data = HEADER_SIZE + (((flags & FLAG_TIMECODE) != 0) ? TIMECODE_SIZE : 0);
+		bytes = Math.min(bytes,length - data);
+		bpp = format.bytesPerPixel;
+
+		if ((bytes > 0) && (offset >= 0) && (offset / bpp + bytes / bpp < MAX_FRAME_PIXELS)) {
+			framePixels = Math.max(framePixels,(offset + bytes) / bpp);
+			dest = frames.back((offset + bytes + bpp - 1) / bpp);
+
+			// data that doesn't start or end on a pixel boundary goes
+			// through the partial pixel buffer
+			n = Math.min(bytes,(bpp - offset % bpp) % bpp);
+			if (n > 0) {
+				putPartial(dest,offset,data,n);
+				offset += n;
+				data += n;
+				bytes -= n;
+			}
+			pix = decodePixels(data,bytes,dest,offset / bpp);
+			offset += pix * bpp;
+			data += pix * bpp;
+			bytes -= pix * bpp;
+			if (bytes > 0) putPartial(dest,offset,data,bytes);
+		}
+
+		if ((flags & FLAG_PUSH) != 0) {
+			// timecode is in 1/65536 second units
+			if ((flags & FLAG_TIMECODE) != 0) {
+				frames.timestamp(((buffer.getInt(HEADER_SIZE) & 0xFFFFFFFFL) * 1000) >>> 16);
+			}
+			frames.publishAndCopy(framePixels);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ Pixelblaze output expander transport.
+ <p>
+ Decodes the serial protocol a Pixelblaze uses to drive its output expander
+ boards, straight from a byte stream into the pixel buffer, with no bridge
+ process or UDP hop in between.  The stream can be a serial port, a pty or
+ a FIFO -- anything live that can be read as an InputStream or a blocking
+ ReadableByteChannel.  Records are shown as fast as they arrive, so a
+ capture file would play back all at once.  The wire protocol is
+ described in Ben Hencke's output expander repository at
+ https://github.com/simap/pixelblaze_output_expander
+ <p>
+ Each record starts with the magic word "UPXL", a channel number and a
+ command.  Channel data records end with a CRC32 of the whole record, and
+ records that fail the check are skipped.  Like the pbxTeleporter bridge,
+ channels are placed one after another in the order they arrive, and the
+ frame is shown when the draw all command comes in.  WS2812 channels can
+ be RGB or RGBW. APA102 channels are RGB, scaled by their 5 bit brightness.
+ <p>
+ The stream is read in large blocks on its own thread, and records are
+ parsed in place. Java can't set serial port speeds, so configure the port
+ first, with something like "stty -F /dev/ttyS0 2000000 raw".
+*/
+class ExpanderTransport extends PixelTransport implements Runnable {
+	// record types
+	final static int SET_CHANNEL_WS2812 = 1;
+	final static int DRAW_ALL = 2;
+	final static int SET_CHANNEL_APA102_DATA = 3;
+	final static int SET_CHANNEL_APA102_CLOCK = 4;
+
+	final static int HEADER_SIZE = 6;        // "UPXL", channel, command
+	final static int WS2812_SIZE = 4;        // elements, color orders, pixels (LE)
+	final static int APA102_SIZE = 7;        // frequency (LE), color orders, pixels (LE)
+	final static int CLOCK_SIZE = 4;         // frequency (LE)
+	final static int CRC_SIZE = 4;
+	// largest record: 65535 RGBW or APA102 pixels
+	final static int MAX_RECORD_SIZE = HEADER_SIZE + APA102_SIZE + 65535 * 4 + CRC_SIZE;
+
+	// Largest display we'll accept. Anything bigger is garbage.
+	final static int MAX_FRAME_PIXELS = 1 << 20;
+
+	String path;                    // file to open on the reader thread, or null
+	ReadableByteChannel in;
+	Thread thread;
+
+	// receiver thread only
+	ByteBuffer buf;
+	ByteBuffer crcView;             // duplicate of buf, for checking CRCs in place
+	CRC32 crc = new CRC32();
+	int framePixels;                // pixels received since the last draw all
+
+	/**
+	 * Reads from the specified file, which is opened when the transport
+	 * starts, since opening a FIFO blocks until there's a writer.
+	 */
+	ExpanderTransport(String path) {
+		super();
+		this.path = path;
+		allocate();
+	}
+
+	ExpanderTransport(InputStream in) {
+		this(Channels.newChannel(in));
+	}
+
+	/**
+	 * Reads from the specified channel.  The reader thread waits in read(),
+	 * so a channel in non-blocking mode would just spin.
+	 */
+	ExpanderTransport(ReadableByteChannel in) {
+		super();
+		if ((in instanceof SelectableChannel) && !((SelectableChannel) in).isBlocking()) {
+			throw new IllegalArgumentException("Output expander channel must be in blocking mode");
+		}
+		this.in = in;
+		allocate();
+	}
+
+	void allocate() {
+		buf = ByteBuffer.allocateDirect(2 * MAX_RECORD_SIZE);
+		crcView = buf.duplicate();
+	}
+
+	/**
+	 * Pixel formats come from each channel's header, so can't be changed.
+	 */
+	public void setPixelFormat(PixelFormat format) {
+		;
+	}
+
+	public void start() {
+		super.start();
+		thread = new Thread(this,"PixelTeleporter expander");
+		thread.start();
+	}
+
+	public void stop() {
+		super.stop();
+		try {
+			if (in != null) in.close();
+		} catch (IOException e) {
+			;
+		}
+		if (thread != null) thread.interrupt();
+	}
+
+	public void run() {
+		int n;
+
+		try {
+			if (in == null) in = FileChannel.open(Paths.get(path),StandardOpenOption.READ);
+
+			while (running) {
+				n = in.read(buf);
+				if (n < 0) break;
+				if (n == 0) continue;
+				lastActivity = millis();
+
+				buf.flip();
+				buf.position(parse(buf.limit()));
+				buf.compact();
+				// Records are capped at MAX_RECORD_SIZE, so this can't happen,
+				// but a full buffer would make read() return 0 forever.
+				if (!buf.hasRemaining()) buf.clear();
+			}
+		}
+		catch (IOException e) {
+			// closed by stop(), or the device went away
+			if (running) e.printStackTrace();
+		}
+		System.out.println("PixelTeleporter expander stream ended");
+	}
+
+	/**
+	 * Handles every complete record between the start of the buffer and
+	 * end, skipping anything that isn't a record.
+	 * @return position of the first byte not yet handled
+	 */
+	int parse(int end) {
+		int pos,length;
+
+		pos = 0;
+		while (end - pos >= HEADER_SIZE) {
+			if (!isMagic(pos)) {
+				pos++;
+				continue;
+			}
+			length = recordLength(pos,end);
+			if (length == 0) break;              // need more data
+			if (length < 0) {
+				pos++;                           // not a record we understand
+				continue;
+			}
+
+			long t = System.nanoTime();
+			if (!handleRecord(pos,length)) {
+				// bad CRC. Might have been a false magic word, so resync
+				// from the next byte rather than skipping the whole record.
+				frames.metrics.errors.increment();
+				pos++;
+				continue;
+			}
+			frames.metrics.received(length,System.nanoTime() - t);
+			pos += length;
+		}
+		return pos;
+	}
+
+	boolean isMagic(int pos) {
+		return (buf.get(pos) == 'U') && (buf.get(pos + 1) == 'P') &&
+		       (buf.get(pos + 2) == 'X') && (buf.get(pos + 3) == 'L');
+	}
+
+	int get16(int pos) {
+		return (buf.get(pos) & 0xFF) | ((buf.get(pos + 1) & 0xFF) << 8);
+	}
+
+	/**
+	 * Returns the length of the record at pos, including its header and CRC,
+	 * 0 if the whole record isn't in the buffer yet, or -1 if it isn't a
+	 * valid record.  Draw all records are just a header.  Anything following
+	 * them is skipped while looking for the next magic word.  Headers that
+	 * claim more than 4 elements per pixel, or a record bigger than
+	 * MAX_RECORD_SIZE, are garbage -- usually a false magic word -- and
+	 * waiting for the rest of them would stall the stream.
+	 */
+	int recordLength(int pos,int end) {
+		int length,elements;
+
+		switch (buf.get(pos + 5)) {
+		case SET_CHANNEL_WS2812:
+			if (end - pos < HEADER_SIZE + WS2812_SIZE) return 0;
+			elements = buf.get(pos + HEADER_SIZE) & 0xFF;
+			if ((elements == 0) || (elements > 4)) return -1;
+			length = HEADER_SIZE + WS2812_SIZE + CRC_SIZE + elements * get16(pos + HEADER_SIZE + 2);
+			break;
+		case DRAW_ALL:
+			return HEADER_SIZE;
+		case SET_CHANNEL_APA102_DATA:
+			if (end - pos < HEADER_SIZE + APA102_SIZE) return 0;
+			length = HEADER_SIZE + APA102_SIZE + CRC_SIZE + 4 * get16(pos + HEADER_SIZE + 5);
+			break;
+		case SET_CHANNEL_APA102_CLOCK:
+			length = HEADER_SIZE + CLOCK_SIZE + CRC_SIZE;
+			break;
+		default:
+			return -1;
+		}
+		if (length > MAX_RECORD_SIZE) return -1;
+		return (end - pos < length) ? 0 : length;
+	}
+
+	/**
+	 * Checks a channel record's CRC, which covers everything from the magic
+	 * word up to the CRC itself and is sent little endian.
+	 */
+	boolean crcOk(int pos,int length) {
+		int end = pos + length - CRC_SIZE;
+		long expected = (get16(end) | ((long) get16(end + 2) << 16));
+
+		crcView.limit(end).position(pos);
+		crc.reset();
+		crc.update(crcView);
+		return crc.getValue() == expected;
+	}
+
+	/**
+	 * Handles a complete record.  Returns false if its CRC doesn't match.
+	 */
+	boolean handleRecord(int pos,int length) {
+		int cmd = buf.get(pos + 5);
+		if (cmd == DRAW_ALL) {
+			drawAll();
+			return true;
+		}
+		if (!crcOk(pos,length)) return false;
+
+		if (cmd == SET_CHANNEL_WS2812) {
+			setChannelWS2812(pos + HEADER_SIZE);
+		}
+		else if (cmd == SET_CHANNEL_APA102_DATA) {
+			setChannelAPA102(pos + HEADER_SIZE);
+		}
+		// APA102 clock records don't affect what's displayed
+		return true;
+	}
+
+	/**
+	 * Decodes a WS2812 channel's RGB or RGBW pixels into the next block of
+	 * the frame.  Other element counts are skipped, but keep their place.
+	 */
+	void setChannelWS2812(int pos) {
+		int elements = buf.get(pos) & 0xFF;
+		int pixels = get16(pos + 2);
+		int first = framePixels;
+		PixelFormat f;
+
+		if (!reserve(pixels)) return;
+		if (elements == 3) {
+			f = PixelFormat.RGB;
+		}
+		else if (elements == 4) {
+			f = PixelFormat.RGBW;
+		}
+		else {
+			return;
+		}
+
+		int[] dest = frames.back(framePixels);
+		int n = f.decode(buf,pos + WS2812_SIZE,pixels * elements,dest,first);
+		long[] wide = frames.backWide();
+		if (wide != null) f.decodeWide(buf,pos + WS2812_SIZE,dest,wide,first,n);
+	}
+
+	/**
+	 * Decodes an APA102 channel's pixels into the next block of the frame.
+	 * Each pixel is a brightness byte (3 flag bits and 5 bits of brightness)
+	 * followed by RGB.  The brightness is applied to the colors, at full
+	 * precision in the high precision buffer.
+	 */
+	void setChannelAPA102(int pos) {
+		int pixels = get16(pos + 5);
+		int pix = framePixels;
+		int i,end,b,r,g,bl;
+
+		if (!reserve(pixels)) return;
+		int[] dest = frames.back(framePixels);
+		long[] wide = frames.backWide();
+
+		end = pos + APA102_SIZE + 4 * pixels;
+		for (i = pos + APA102_SIZE; i < end; i += 4) {
+			b = buf.get(i) & 0x1F;
+			r = buf.get(i + 1) & 0xFF;
+			g = buf.get(i + 2) & 0xFF;
+			bl = buf.get(i + 3) & 0xFF;
+			dest[pix] = 0xFF000000 | ((r * b / 31) << 16) | ((g * b / 31) << 8) | (bl * b / 31);
+			if (wide != null) {
+				// full scale is 255 * 31 == 7905
+				wide[pix] = 0xFFFF000000000000L |
+				            ((long) (r * b * 65535 / 7905) << 32) |
+				            ((long) (g * b * 65535 / 7905) << 16) |
+				            (bl * b * 65535 / 7905);
+			}
+			pix++;
+		}
+	}
+
+	/**
+	 * Makes room for the next channel's pixels at the end of the frame.
+	 * Returns false if it would make the frame too big.
+	 */
+	boolean reserve(int pixels) {
+		if ((pixels == 0) || (framePixels + pixels > MAX_FRAME_PIXELS)) return false;
+		framePixels += pixels;
+		return true;
+	}
+
+	/**
+	 * Shows the channels received since the last draw all.
+	 */
+	void drawAll() {
+		if (framePixels == 0) return;
+		frames.back(framePixels);
+		frames.publish(framePixels);
+		framePixels = 0;
+	}
+}
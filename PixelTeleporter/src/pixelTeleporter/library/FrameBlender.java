@@ -0,0 +1,169 @@
+package pixelTeleporter.library;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Interpolates between frames when the sketch draws faster than frames
+ arrive.  Each new frame becomes the target, and every draw, the pixels
+ are faded from what was on screen when it arrived toward it, reaching it
+ after the average time between frames.  This adds about one frame of delay.
+ <p>
+ Linear mode blends the 8 bit channel values directly.  Gamma mode blends
+ in linear light, through lookup tables for a 2.2 gamma curve, so fades
+ between bright and dark colors don't dip or flash at the midpoint.
+ <p>
+ Everything works on int arrays that are allocated once and reused.
+*/
+class FrameBlender {
+	static final long MS = 1000000L;                 // nanoseconds
+	static final long MAX_INTERVAL = 250 * MS;       // longer gaps aren't a frame rate
+	static final double GAMMA = 2.2;
+
+	// 8 bit value to 16 bit linear light, and back
+	static final int[] toLinear = new int[256];
+	static final byte[] fromLinear = new byte[65536];
+	static {
+		for (int i = 0; i < 256; i++) {
+			toLinear[i] = (int) Math.round(Math.pow(i / 255.0,GAMMA) * 65535);
+		}
+		for (int i = 0; i < 65536; i++) {
+			fromLinear[i] = (byte) Math.round(Math.pow(i / 65535.0,1 / GAMMA) * 255);
+		}
+	}
+
+	boolean gamma;
+	int[] from = new int[0];        // pixels on screen when the target arrived
+	int[] target = new int[0];      // newest frame
+	int[] out = new int[0];         // blended pixels, as last shown
+	int count = 0;
+	long arrived;                   // System.nanoTime() when target arrived
+	long interval = 33 * MS;        // average time between frames
+	boolean primed = false;         // we have a frame to blend from
+	boolean done = true;            // out == target
+
+	FrameBlender(boolean gamma) {
+		this.gamma = gamma;
+	}
+
+	/**
+	 * Starts over. The next frame will be shown as is.
+	 */
+	void reset() {
+		primed = false;
+		done = true;
+	}
+
+	/**
+	 * True if the pixels are still changing between frames
+	 */
+	boolean blending() {
+		return !done;
+	}
+
+	/**
+	 * Takes a new target frame.  The array can be reused by the caller
+	 * as soon as this returns.
+	 * @param frame ARGB pixels
+	 * @param n number of pixels in the frame
+	 */
+	void push(int[] frame,int n) {
+		long now = System.nanoTime();
+		int[] t;
+
+		if (out.length < frame.length) {
+			from = new int[frame.length];
+			target = new int[frame.length];
+			out = new int[frame.length];
+			primed = false;
+		}
+
+		// start from what's on screen, so a frame that arrives early
+		// doesn't make the display jump
+		t = from;
+		from = out;
+		out = t;
+		System.arraycopy(frame,0,target,0,n);
+
+		if (!primed || (n != count)) {
+			System.arraycopy(frame,0,from,0,n);
+			primed = true;
+		}
+		else {
+			long dt = now - arrived;
+			if (dt < MAX_INTERVAL) interval += (dt - interval) >> 2;
+		}
+		arrived = now;
+		count = n;
+		done = false;
+	}
+
+	/**
+	 * Blends the pixels for the current time.
+	 * @return the blended frame
+	 */
+	int[] blend() {
+		if (done) return out;
+
+		long w = ((System.nanoTime() - arrived) << 8) / Math.max(interval,1);
+		if (w >= 256) {
+			System.arraycopy(target,0,out,0,count);
+			done = true;
+		}
+		else if (gamma) {
+			blendGamma((int) Math.max(w,0));
+		}
+		else {
+			blendLinear((int) Math.max(w,0));
+		}
+		return out;
+	}
+
+	/**
+	 * out = from + (target - from) * w / 256, per channel
+	 */
+	void blendLinear(int w) {
+		int i,a,b,r,g,bl;
+
+		for (i = 0; i < count; i++) {
+			a = from[i];
+			b = target[i];
+			if (a == b) {
+				out[i] = a;
+				continue;
+			}
+			r = (a >> 16) & 0xFF;
+			g = (a >> 8) & 0xFF;
+			bl = a & 0xFF;
+			r += ((((b >> 16) & 0xFF) - r) * w) >> 8;
+			g += ((((b >> 8) & 0xFF) - g) * w) >> 8;
+			bl += (((b & 0xFF) - bl) * w) >> 8;
+			out[i] = 0xFF000000 | (r << 16) | (g << 8) | bl;
+		}
+	}
+
+	/**
+	 * Like blendLinear(), but in linear light
+	 */
+	void blendGamma(int w) {
+		int i,a,b,r,g,bl;
+
+		for (i = 0; i < count; i++) {
+			a = from[i];
+			b = target[i];
+			if (a == b) {
+				out[i] = a;
+				continue;
+			}
+			r = toLinear[(a >> 16) & 0xFF];
+			g = toLinear[(a >> 8) & 0xFF];
+			bl = toLinear[a & 0xFF];
+			r += ((toLinear[(b >> 16) & 0xFF] - r) * w) >> 8;
+			g += ((toLinear[(b >> 8) & 0xFF] - g) * w) >> 8;
+			bl += ((toLinear[b & 0xFF] - bl) * w) >> 8;
+			out[i] = 0xFF000000 |
+			         ((fromLinear[r] & 0xFF) << 16) |
+			         ((fromLinear[g] & 0xFF) << 8) |
+			         (fromLinear[bl] & 0xFF);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package pixelTeleporter.library;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Lock-free triple buffer used to hand decoded frames from a transport's
+ receiver thread to the drawing thread.
+ <p>
+ The receiver owns the "back" buffer and decodes into it, then publishes
+ it by swapping it with the shared "middle" buffer.  The drawing thread owns
+ the "front" buffer and, when a new frame has been published, swaps it with
+ the middle. Neither side ever waits for the other, and the drawing thread
+ always gets the most recently completed frame.
+ */
+class FrameExchange {
+	static final int INDEX_MASK = 0x03;
+	static final int FRESH = 0x04;      // middle buffer holds an unread frame
+
+	int[][] buffers;
+	long[][] wide;                      // optional high precision copies, or null
+	int[] counts;                       // pixels in the frame held by each buffer
+	int back;                           // receiver thread only
+	int front;                          // drawing thread only
+	AtomicInteger middle;               // buffer index | FRESH
+	TransportMetrics metrics = new TransportMetrics();
+
+	FrameExchange(int size) {
+		this(size,3);
+	}
+
+	/**
+	 * Creates n buffers of the specified size. Subclasses that queue frames
+	 * need more than three.
+	 */
+	FrameExchange(int size,int n) {
+		buffers = new int[n][size];
+		counts = new int[n];
+		back = 0;
+		middle = new AtomicInteger(1);
+		front = 2;
+	}
+
+	/**
+	 * Receiver side: buffer to decode the next frame into.
+	 */
+	int[] back() {
+		return buffers[back];
+	}
+
+	/**
+	 * Receiver side: make sure the back buffer can hold at least the
+	 * specified number of pixels, growing it if necessary. Buffers only
+	 * grow, so once all three have cycled through a large frame, this
+	 * no longer allocates.
+	 */
+	int[] back(int size) {
+		if (buffers[back].length < size) {
+			buffers[back] = Arrays.copyOf(buffers[back],size);
+			if (wide != null) wide[back] = Arrays.copyOf(wide[back],size);
+		}
+		return buffers[back];
+	}
+
+	/**
+	 * Receiver side: high precision buffer that goes with the back buffer.
+	 * Always the same size as back().  Null unless enableWide() was called.
+	 */
+	long[] backWide() {
+		return (wide == null) ? null : wide[back];
+	}
+
+	/**
+	 * Adds a high precision buffer, 16 bits per channel, to each of the
+	 * buffers. They are exchanged along with the ARGB buffers.  Call
+	 * before the receiver starts.
+	 */
+	void enableWide() {
+		if (wide != null) return;
+		long[][] w = new long[buffers.length][];
+		for (int i = 0; i < buffers.length; i++) {
+			w[i] = new long[buffers[i].length];
+		}
+		wide = w;
+	}
+
+	/**
+	 * Receiver side: publish the back buffer, containing the specified
+	 * number of pixels, and take ownership of a new back buffer.  If the
+	 * previously published frame was never read, it is silently dropped.
+	 */
+	void publish(int count) {
+		counts[back] = count;
+		int last = middle.getAndSet(back | FRESH);
+		back = last & INDEX_MASK;
+
+		metrics.framesReceived.increment();
+		if ((last & FRESH) != 0) metrics.framesDropped.increment();
+	}
+
+	/**
+	 * Receiver side: sets the sender's timestamp, in milliseconds, for the
+	 * frame in the back buffer.  Transports call this before publishing if
+	 * their protocol carries one.  Ignored here. Used by JitterBuffer.
+	 */
+	void timestamp(long ms) {
+		;
+	}
+
+	/**
+	 * Receiver side: publish the back buffer, then copy its first count
+	 * pixels into the new back buffer.  Used by transports that update only
+	 * part of the frame at a time, so unchanged pixels carry over.
+	 */
+	void publishAndCopy(int count) {
+		int last = back;
+		publish(count);
+		System.arraycopy(buffers[last],0,back(count),0,count);
+		if (wide != null) System.arraycopy(wide[last],0,wide[back],0,count);
+	}
+
+	/**
+	 * Drawing side: true if a frame has been published since the last latch()
+	 */
+	boolean available() {
+		return (middle.get() & FRESH) != 0;
+	}
+
+	/**
+	 * Drawing side: if a new frame is available, make it the front buffer.
+	 * @return true if the front buffer changed
+	 */
+	boolean latch() {
+		if (!available()) return false;
+		front = middle.getAndSet(front) & INDEX_MASK;
+		metrics.framesShown.increment();
+		return true;
+	}
+
+	/**
+	 * Drawing side: the most recently latched frame
+	 */
+	int[] front() {
+		return buffers[front];
+	}
+
+	/**
+	 * Drawing side: high precision version of front(), or null
+	 */
+	long[] frontWide() {
+		return (wide == null) ? null : wide[front];
+	}
+
+	/**
+	 * Drawing side: number of pixels in the front buffer
+	 */
+	int frontCount() {
+		return counts[front];
+	}
+}
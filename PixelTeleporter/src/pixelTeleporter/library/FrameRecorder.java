@@ -0,0 +1,325 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Records frames to a file, with a timestamp for each, for later playback.
+ <p>
+ The drawing thread copies each frame into a slot in a small ring of
+ preallocated buffers and goes on its way.  A writer thread takes frames
+ from the ring and appends them to the recording, which is memory mapped
+ a segment at a time, so writing a frame is a copy into the page cache.
+ If the writer falls behind and the ring fills up, frames are dropped
+ rather than holding up the sketch.  Nothing is allocated per frame.
+ <p>
+ Each frame's timestamp is the time record() was called -- when the
+ sketch latched the frame in readData() -- not when the transport
+ received it, so timing is only as fine as the sketch's frame rate.
+ <p>
+ Compressed recordings store a keyframe every INDEX_INTERVAL, and in
+ between, each frame as its difference from the one before -- each byte
+ minus the previous frame's byte, mod 256 -- so pixels that hold still
+ become zeros and slow fades become small numbers.  Both are then
+ deflated at the fastest setting.  Frames that don't get any smaller
+ are stored as they are.  All of this happens on the writer thread.
+ <p>
+ The file starts with a fixed size header that holds the end of the
+ recorded data and the frame count.  They're updated after every frame,
+ so a recording cut short by a crash is still readable up to the last
+ frame written.  The writer adds an entry for each keyframe to a seek
+ index in a separate file with the same name and a ".ptidx" extension.
+ Uncompressed frames are all keyframes, but are only indexed every
+ INDEX_INTERVAL of recording time.
+ <p>
+ File layout.  All numbers are big endian.
+ <pre>
+ header (HEADER_SIZE bytes)
+   magic "PTRC", version (4), start time (8, ms since the epoch),
+   end of data (8), frame count (4)
+ each frame
+   record length (4, including this header), timestamp (8, microseconds
+   since the start of the recording), pixel count (4), flags (4),
+   pixels (3 bytes each, RGB) or differences, deflated if FLAG_DEFLATE
+ index entries (INDEX_ENTRY_SIZE bytes each)
+   timestamp (8), file offset of frame (8), frame number (4)
+ </pre>
+*/
+class FrameRecorder implements Runnable {
+	final static int MAGIC = 0x50545243;            // "PTRC"
+	final static int VERSION = 2;
+	final static int HEADER_SIZE = 64;
+	final static int END_OFFSET = 16;               // position of end of data in header
+	final static int COUNT_OFFSET = 24;             // position of frame count in header
+	final static int RECORD_HEADER_SIZE = 20;
+	final static int INDEX_ENTRY_SIZE = 20;
+	final static String INDEX_EXTENSION = ".ptidx";
+
+	// frame flags
+	final static int FLAG_DEFLATE = 0x01;           // data is deflated
+	final static int FLAG_DELTA = 0x02;             // data is differences from the previous frame
+
+	// Bytes of the file mapped at a time
+	final static int SEGMENT_SIZE = 64 << 20;
+	// Recording time between index entries and keyframes, in microseconds
+	final static long INDEX_INTERVAL = 1000000L;
+	// Frames that can wait for the writer. A quarter second or so at 60 fps.
+	final static int RING_SIZE = 16;
+
+	RandomAccessFile file;
+	FileChannel channel;
+	FileChannel index;
+	Thread thread;
+	volatile boolean running;
+	volatile boolean failed;        // writing failed, and recording has stopped
+
+	// ring of frames waiting to be written.  Slots from tail to head-1 belong
+	// to the writer, the rest to the drawing thread.
+	int[][] slots = new int[RING_SIZE][];
+	int[] counts = new int[RING_SIZE];
+	long[] stamps = new long[RING_SIZE];
+	volatile long head;             // next slot the drawing thread fills
+	volatile long tail;             // next slot the writer empties
+	long startNanos;
+	int dropped;                    // drawing thread only
+
+	// writer thread only
+	MappedByteBuffer header;
+	MappedByteBuffer segment;
+	long segmentStart;              // file offset of the mapped segment
+	long end = HEADER_SIZE;         // file offset of end of data
+	int frameCount;
+	long nextIndex;                 // timestamp of next index entry
+	byte[] staging = new byte[0];   // frame as RGB bytes
+	boolean compress;
+	byte[] previous = new byte[0];  // previous frame, RGB
+	int previousCount = -1;
+	byte[] delta = new byte[0];
+	byte[] packed = new byte[0];
+	Deflater deflater;
+	ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+	/**
+	 * Creates a new recording, replacing any file of the same name.
+	 * @param filename name of the recording
+	 * @param pixels expected frame size, used to size the ring's buffers
+	 * @param compress true to store keyframes and compressed differences
+	 */
+	FrameRecorder(String filename,int pixels,boolean compress) throws IOException {
+		this.compress = compress;
+		if (compress) deflater = new Deflater(Deflater.BEST_SPEED);
+		file = new RandomAccessFile(filename,"rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		index = new RandomAccessFile(indexName(filename),"rw").getChannel();
+		index.truncate(0);
+
+		header = channel.map(FileChannel.MapMode.READ_WRITE,0,HEADER_SIZE);
+		header.putInt(0,MAGIC);
+		header.putInt(4,VERSION);
+		header.putLong(8,System.currentTimeMillis());
+		header.putLong(END_OFFSET,end);
+		header.putInt(COUNT_OFFSET,0);
+		mapSegment(end);
+
+		for (int i = 0; i < RING_SIZE; i++) {
+			slots[i] = new int[Math.max(pixels,1)];
+		}
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Returns the name of the index file that goes with a recording
+	 */
+	static String indexName(String filename) {
+		int dot = filename.lastIndexOf('.');
+		if (dot <= Math.max(filename.lastIndexOf('/'),filename.lastIndexOf('\\'))) dot = filename.length();
+		return filename.substring(0,dot) + INDEX_EXTENSION;
+	}
+
+	void start() {
+		running = true;
+		thread = new Thread(this,"PixelTeleporter recorder");
+		thread.start();
+	}
+
+	/**
+	 * Drawing thread: queues a frame to be written.  Returns false, and
+	 * drops the frame, if the writer has fallen too far behind or failed.
+	 */
+	boolean record(int[] frame,int count) {
+		long h = head;
+		int slot;
+
+		if (failed) return false;
+		if (h - tail >= RING_SIZE) {
+			dropped++;
+			return false;
+		}
+		slot = (int) (h % RING_SIZE);
+		// only allocates if the display has grown
+		if (slots[slot].length < count) slots[slot] = new int[count];
+		System.arraycopy(frame,0,slots[slot],0,count);
+		counts[slot] = count;
+		stamps[slot] = (System.nanoTime() - startNanos) / 1000;
+		head = h + 1;
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Writes everything still in the ring, finishes the file and closes it.
+	 */
+	void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		try {
+			while (running || (tail != head)) {
+				if (tail == head) {
+					LockSupport.park(this);
+					continue;
+				}
+				int slot = (int) (tail % RING_SIZE);
+				write(slots[slot],counts[slot],stamps[slot]);
+				tail = tail + 1;
+			}
+			finish();
+		}
+		catch (IOException e) {
+			System.out.println("PixelTeleporter: Recording failed after " + frameCount + " frames");
+			e.printStackTrace();
+			failed = true;
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * Maps the segment of the file starting at offset
+	 */
+	void mapSegment(long offset) throws IOException {
+		segment = channel.map(FileChannel.MapMode.READ_WRITE,offset,SEGMENT_SIZE);
+		segmentStart = offset;
+	}
+
+	/**
+	 * Appends a frame to the recording, and to the index if it's a keyframe
+	 * that's due for indexing.
+	 */
+	void write(int[] frame,int count,long stamp) throws IOException {
+		int size = 3 * count;
+		int i,j,c,length,flags;
+		byte[] data;
+		boolean key;
+
+		if (staging.length < size) {
+			staging = new byte[size];
+			if (compress) {
+				previous = new byte[size];
+				delta = new byte[size];
+				packed = new byte[size];
+			}
+		}
+		for (i = 0, j = 0; i < count; i++) {
+			c = frame[i];
+			staging[j++] = (byte) (c >> 16);
+			staging[j++] = (byte) (c >> 8);
+			staging[j++] = (byte) c;
+		}
+
+		data = staging;
+		flags = 0;
+		key = (stamp >= nextIndex) || (count != previousCount);
+		if (compress) {
+			if (!key) {
+				for (i = 0; i < size; i++) {
+					delta[i] = (byte) (staging[i] - previous[i]);
+				}
+				data = delta;
+				flags = FLAG_DELTA;
+			}
+			System.arraycopy(staging,0,previous,0,size);
+			previousCount = count;
+
+			deflater.reset();
+			deflater.setInput(data,0,size);
+			deflater.finish();
+			length = deflater.deflate(packed,0,size);
+			if (deflater.finished() && (length < size)) {
+				data = packed;
+				size = length;
+				flags |= FLAG_DEFLATE;
+			}
+		}
+		length = RECORD_HEADER_SIZE + size;
+
+		if (end + length > segmentStart + SEGMENT_SIZE) mapSegment(end);
+		if (key && (stamp >= nextIndex)) {
+			indexEntry.clear();
+			indexEntry.putLong(stamp).putLong(end).putInt(frameCount).flip();
+			index.write(indexEntry);
+			nextIndex = stamp + INDEX_INTERVAL;
+		}
+
+		segment.position((int) (end - segmentStart));
+		segment.putInt(length).putLong(stamp).putInt(count).putInt(flags);
+		segment.put(data,0,size);
+
+		end += length;
+		frameCount++;
+		header.putLong(END_OFFSET,end);
+		header.putInt(COUNT_OFFSET,frameCount);
+	}
+
+	/**
+	 * Flushes the recording to disk and trims the unused end of the last
+	 * segment.  Some systems won't shorten a file that's still mapped, in
+	 * which case it stays padded, and readers go by the header.
+	 */
+	void finish() throws IOException {
+		segment.force();
+		header.force();
+		segment = null;
+		header = null;
+		try {
+			channel.truncate(end);
+		} catch (IOException e) {
+			;
+		}
+		System.out.println("PixelTeleporter recorded " + frameCount + " frames" +
+		                   ((dropped > 0) ? ", dropped " + dropped : ""));
+	}
+
+	/**
+	 * Closes the recording and its index, whether or not it was finished
+	 */
+	void close() {
+		try {
+			index.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (deflater != null) deflater.end();
+	}
+}
@@ -0,0 +1,198 @@
+package pixelTeleporter.library;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ FrameExchange that smooths out network jitter.  Instead of always handing
+ the drawing thread the newest frame, published frames are queued with
+ their arrival time, and released one at a time at the rate they're being
+ sent, a little behind real time.  Frames that arrive in bursts over Wi-Fi
+ are shown evenly spaced, at the cost of a fixed delay.
+ <p>
+ The frame interval is a moving average of the time between arrivals. If
+ the transport supplies the sender's timestamps, the spacing between them
+ is used instead.  Playback runs slightly fast or slow to keep about
+ targetLatency worth of frames queued.  If the queue runs dry, playback
+ stops until it has refilled.  If it fills up, the oldest frame is dropped.
+ <p>
+ Frames arrive and leave at display rates, so a lock is simpler here than
+ another lock-free scheme, and costs nothing measurable.
+*/
+class JitterBuffer extends FrameExchange {
+	static final long NO_STAMP = Long.MIN_VALUE;
+	static final long MS = 1000000L;                 // nanoseconds
+	static final long MAX_INTERVAL = 1000 * MS;      // longer gaps don't count toward the average
+	static final long DEFAULT_INTERVAL = 33 * MS;
+
+	final long targetLatency;       // nanoseconds
+	final int maxDepth;             // most frames we'll queue
+
+	int[] queue;                    // buffer indices, oldest first
+	int head;
+	int depth;
+	int[] free;                     // buffers not in use
+	int freeCount;
+	long[] arrival;                 // per buffer, System.nanoTime() when published
+	long[] stamp;                   // per buffer, sender's timestamp in ms, or NO_STAMP
+	long pendingStamp = NO_STAMP;   // receiver thread only
+
+	long lastArrival = 0;
+	long interval = DEFAULT_INTERVAL;  // average time between frames
+	long nextRelease;               // drawing thread only
+	boolean playing = false;
+
+	/**
+	 * @param size initial buffer size, in pixels
+	 * @param latency target delay, in milliseconds
+	 * @param maxDepth most frames to queue
+	 */
+	JitterBuffer(int size,int latency,int maxDepth) {
+		super(size,Math.max(1,maxDepth) + 2);
+		this.targetLatency = Math.max(0,latency) * MS;
+		this.maxDepth = Math.max(1,maxDepth);
+
+		queue = new int[this.maxDepth];
+		free = new int[buffers.length];
+		arrival = new long[buffers.length];
+		stamp = new long[buffers.length];
+
+		// buffer 0 is the back buffer, 1 the front, and the rest are free
+		back = 0;
+		front = 1;
+		for (int i = 2; i < buffers.length; i++) {
+			free[freeCount++] = i;
+		}
+	}
+
+	void timestamp(long ms) {
+		pendingStamp = ms;
+	}
+
+	/**
+	 * Receiver side: queues the back buffer and takes a free one.  If the
+	 * queue is full, the oldest frame is dropped to make room.
+	 */
+	synchronized void publish(int count) {
+		long now = System.nanoTime();
+
+		counts[back] = count;
+		arrival[back] = now;
+		stamp[back] = pendingStamp;
+		pendingStamp = NO_STAMP;
+
+		if (lastArrival != 0) {
+			long dt = now - lastArrival;
+			if (dt < MAX_INTERVAL) interval += (dt - interval) >> 3;
+		}
+		lastArrival = now;
+		metrics.framesReceived.increment();
+
+		if (depth == maxDepth) {
+			free[freeCount++] = pop();
+			metrics.framesDropped.increment();
+		}
+		queue[(head + depth) % maxDepth] = back;
+		depth++;
+		back = free[--freeCount];
+	}
+
+	/**
+	 * Removes the oldest frame from the queue. Call with the lock held.
+	 */
+	int pop() {
+		int i = queue[head];
+		head = (head + 1) % maxDepth;
+		depth--;
+		return i;
+	}
+
+	/**
+	 * Time from showing frame i to showing the frame after it, which is at
+	 * the head of the queue.  Nudged to keep the queue near the target
+	 * latency.  Call with the lock held.
+	 */
+	long spacing(int i) {
+		long dt = interval;
+
+		if ((depth > 0) && (stamp[i] != NO_STAMP) && (stamp[queue[head]] != NO_STAMP)) {
+			long ds = (stamp[queue[head]] - stamp[i]) * MS;
+			if ((ds >= 0) && (ds < MAX_INTERVAL)) dt = ds;
+		}
+
+		long queued = depth * interval;
+		if (queued > targetLatency + interval) {
+			dt -= dt >> 3;
+		}
+		else if (queued + interval < targetLatency) {
+			dt += dt >> 3;
+		}
+		return dt;
+	}
+
+	/**
+	 * True if the frame at the head of the queue should be shown now.
+	 * Call with the lock held.
+	 */
+	boolean due(long now) {
+		if (depth == 0) return false;
+		if (playing) return now - nextRelease >= 0;
+
+		// wait until enough frames are queued to ride out the jitter
+		return (now - arrival[queue[head]] >= targetLatency) || (depth == maxDepth);
+	}
+
+	synchronized boolean available() {
+		return due(System.nanoTime());
+	}
+
+	/**
+	 * Drawing side: if a frame is due, makes it the front buffer.  If the
+	 * sketch draws more slowly than frames arrive, frames that are
+	 * already late are skipped.
+	 */
+	synchronized boolean latch() {
+		long now = System.nanoTime();
+		int frame;
+
+		if (depth == 0) {
+			if (playing) metrics.underruns.increment();
+			playing = false;
+			return false;
+		}
+		if (!due(now)) return false;
+		if (!playing) {
+			playing = true;
+			nextRelease = now;
+		}
+
+		frame = pop();
+		nextRelease += spacing(frame);
+		while ((depth > 0) && (now - nextRelease >= 0)) {
+			free[freeCount++] = frame;
+			metrics.framesDropped.increment();
+			frame = pop();
+			nextRelease += spacing(frame);
+		}
+		// don't let a long stall turn into a burst of frames later
+		if (now - nextRelease > interval) nextRelease = now;
+
+		free[freeCount++] = front;
+		front = frame;
+		metrics.framesShown.increment();
+		return true;
+	}
+
+	/**
+	 * Number of frames waiting to be shown
+	 */
+	synchronized int depth() {
+		return depth;
+	}
+
+	/**
+	 * Average time between frames, in milliseconds
+	 */
+	synchronized float frameInterval() {
+		return interval / (float) MS;
+	}
+}
@@ -0,0 +1,75 @@
+package pixelTeleporter.library;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Lock-free histogram of times in microseconds, in the style of HdrHistogram.
+ Values below 16 get a bucket each. Above that, each power of two is split
+ into 8 buckets, so every value is recorded within 12.5% using only a few
+ hundred counters, from a microsecond up to about a minute.  Recording is
+ a couple of shifts and an atomic increment, so it can stay on all the time.
+*/
+class LatencyHistogram {
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int LINEAR = 2 * SUB_BUCKETS;      // values below this get their own bucket
+	static final int MAX_BIT = 26;                  // 2^26 us, about 67 seconds
+	static final int BUCKETS = LINEAR + (MAX_BIT - SUB_BITS) * SUB_BUCKETS;
+
+	AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	static int bucket(long v) {
+		if (v < LINEAR) return (int) Math.max(v,0);
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		if (msb > MAX_BIT) return BUCKETS - 1;
+		int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (msb - SUB_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Largest value that goes in bucket i
+	 */
+	static long highest(int i) {
+		if (i < LINEAR) return i;
+		int msb = (i - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+		long sub = (i - LINEAR) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (msb - SUB_BITS)) - 1;
+	}
+
+	void record(long micros) {
+		counts.incrementAndGet(bucket(micros));
+	}
+
+	long count() {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the value at or below which the specified fraction (0-1) of
+	 * recorded values fall, or 0 if nothing's been recorded.
+	 */
+	long percentile(double p) {
+		long total = count();
+		if (total == 0) return 0;
+
+		long target = Math.max(1,(long) Math.ceil(p * total));
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts.get(i);
+			if (n >= target) return highest(i);
+		}
+		return highest(BUCKETS - 1);
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i,0);
+		}
+	}
+}
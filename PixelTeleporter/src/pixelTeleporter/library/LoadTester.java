@@ -0,0 +1,191 @@
+package pixelTeleporter.library;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ Load generator for the PixelTeleporter UDP transport.  Runs a number of
+ clients at once, each on its own port and thread, the way a sketch would
+ use them -- latch a frame, draw, ask for the next one -- but without
+ drawing anything.  Reports the frame rate each client achieved and its
+ measured round trip time to the server.
+ <p>
+ Normally used with a TestServer on the same machine. From the command line:
+ <pre>
+ java -cp PixelTeleporter.jar pixelTeleporter.library.LoadTester [clients] [pixels] [mode] [seconds] [loss] [latency]
+ </pre>
+ starts a TestServer on loopback and runs the test against it.  mode is
+ classic, pipelined or subscribed.
+*/
+public class LoadTester {
+	/**
+	 * How the clients ask for frames:
+	 * <li><strong>CLASSIC</strong> - one request per frame.</li>
+	 * <li><strong>PIPELINED</strong> - several sequenced requests in flight.</li>
+	 * <li><strong>SUBSCRIBED</strong> - the server pushes frames.</li>
+	 */
+	public enum Mode {
+		CLASSIC,
+		PIPELINED,
+		SUBSCRIBED
+	}
+
+	// longest we'll wait for a frame before asking again, in ms
+	final static int FRAME_TIMEOUT = 100;
+
+	String host;
+	int serverPort;
+	int firstClientPort;
+	int clients;
+	Mode mode = Mode.CLASSIC;
+	int pipelineDepth = 2;
+	float drawRate = 0;
+	boolean compression = false;
+
+	// results, one entry per client
+	int[] frames;
+	float[] rtt;
+	float seconds;
+
+	/**
+	 * @param host address of the server
+	 * @param serverPort port the server listens on
+	 * @param firstClientPort clients listen on this port and the ones after it
+	 * @param clients number of clients to run
+	 */
+	public LoadTester(String host,int serverPort,int firstClientPort,int clients) {
+		this.host = host;
+		this.serverPort = serverPort;
+		this.firstClientPort = firstClientPort;
+		this.clients = Math.max(1,clients);
+	}
+
+	/**
+	 * Sets how clients ask for frames.  depth is the number of
+	 * requests in flight in pipelined mode.
+	 */
+	public void setMode(Mode mode,int depth) {
+		this.mode = mode;
+		this.pipelineDepth = Math.max(1,depth);
+	}
+
+	/**
+	 * Sets the rate at which each client "draws", in frames per second.
+	 * 0, the default, runs as fast as frames arrive.
+	 */
+	public void setDrawRate(float fps) {
+		drawRate = Math.max(0,fps);
+	}
+
+	/**
+	 * Asks for compressed frames
+	 */
+	public void setCompression(boolean on) {
+		compression = on;
+	}
+
+	/**
+	 * Runs all the clients for the specified number of seconds, then stops them.
+	 */
+	public void run(float seconds) throws InterruptedException {
+		Thread[] threads = new Thread[clients];
+		final long end = System.nanoTime() + (long) (seconds * 1e9);
+
+		this.seconds = seconds;
+		frames = new int[clients];
+		rtt = new float[clients];
+		for (int i = 0; i < clients; i++) {
+			final int n = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					runClient(n,end);
+				}
+			},"PixelTeleporter load " + i);
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	/**
+	 * One client's draw loop
+	 */
+	void runClient(int n,long end) {
+		PixelTeleporterThread client = new PixelTeleporterThread(host,firstClientPort + n,serverPort);
+		long period = (drawRate > 0) ? (long) (1e9 / drawRate) : 0;
+		long tick = System.nanoTime();
+
+		client.start();
+		if (mode == Mode.PIPELINED) client.setPipelineDepth(pipelineDepth);
+		if (mode == Mode.SUBSCRIBED) client.setSubscription(1000);
+		if (compression) client.setCompression(true);
+
+		while (System.nanoTime() - end < 0) {
+			client.requestFrame();
+
+			// wait for the next draw, or for a frame if we're drawing flat out
+			tick = (period > 0) ? tick + period : System.nanoTime() + FRAME_TIMEOUT * 1000000L;
+			while ((System.nanoTime() - tick < 0) && ((period > 0) || !client.frameReady())) {
+				LockSupport.parkNanos(50000);
+			}
+			if (client.latch()) frames[n]++;
+		}
+
+		rtt[n] = client.rtt();
+		client.stop();
+	}
+
+	/**
+	 * Total frames per second, over all clients
+	 */
+	public float totalFrameRate() {
+		int total = 0;
+		for (int f : frames) total += f;
+		return total / seconds;
+	}
+
+	/**
+	 * Average round trip time over all clients, in milliseconds
+	 */
+	public float averageRtt() {
+		float total = 0;
+		for (float r : rtt) total += r;
+		return total / clients;
+	}
+
+	/**
+	 * Prints a line for each client, and the totals
+	 */
+	public void report() {
+		for (int i = 0; i < clients; i++) {
+			System.out.printf("client %d: %.1f fps, rtt %.2f ms%n",i,frames[i] / seconds,rtt[i]);
+		}
+		System.out.printf("%d clients, %s: %.1f fps total, %.1f fps per client, average rtt %.2f ms%n",
+		                  clients,mode.name().toLowerCase(),totalFrameRate(),totalFrameRate() / clients,averageRtt());
+	}
+
+	/**
+	 * Runs a load test against a TestServer on loopback.  Arguments, all
+	 * optional: clients, pixels, mode, seconds, loss rate, latency (ms)
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		int pixels = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+		Mode mode = (args.length > 2) ? Mode.valueOf(args[2].toUpperCase()) : Mode.PIPELINED;
+		float seconds = (args.length > 3) ? Float.parseFloat(args[3]) : 5;
+
+		TestServer server = new TestServer(TestServer.DEFAULT_PORT,pixels);
+		server.setFrameRate(1000);
+		if (args.length > 4) server.setLossRate(Float.parseFloat(args[4]));
+		if (args.length > 5) server.setLatency(Integer.parseInt(args[5]));
+		server.start();
+
+		LoadTester test = new LoadTester("127.0.0.1",TestServer.DEFAULT_PORT,TestServer.DEFAULT_PORT + 1,clients);
+		test.setMode(mode,2);
+		test.run(seconds);
+		test.report();
+		System.out.println("server: " + server.getRequestCount() + " requests, " + server.getSentCount() +
+		                   " datagrams sent, " + server.getDroppedCount() + " dropped");
+		server.stop();
+	}
+}
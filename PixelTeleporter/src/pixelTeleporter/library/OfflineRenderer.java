@@ -0,0 +1,472 @@
+package pixelTeleporter.library;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import processing.data.JSONArray;
+
+/**
+ Renders a recording made with PixelTeleporter.startRecording() to a
+ numbered sequence of PNG images or a Motion JPEG AVI video, without
+ opening a window.  Handy for making previews of a show.
+ <p>
+ LEDs are placed according to a Pixelblaze compatible pixel map -- either
+ the map file itself, or a list from PixelTeleporter.importPixelblazeMap()
+ -- scaled to fit the image and viewed from the front, so 3D maps are
+ flattened onto their x,y plane.  Each LED is drawn as a bright dot with
+ a soft glow, and overlapping glows add up, like light.
+ <p>
+ Frames are decoded in order, since most are differences from the frame
+ before, and are then drawn and encoded in parallel on a fork-join pool
+ with a thread for every core.  Finished frames are written in order as
+ soon as all the frames before them are done.  From the command line:
+ <pre>
+ java -cp PixelTeleporter.jar:core.jar pixelTeleporter.library.OfflineRenderer recording map output [width] [height] [fps]
+ </pre>
+ renders to a video if output ends with ".avi", and to a directory of
+ images otherwise.
+*/
+public class OfflineRenderer {
+	final static float DEFAULT_FRAME_RATE = 30;
+	// brightness of the glow next to the LED, out of 256, and how far it reaches, in LED radii
+	final static float GLOW = 80;
+	final static float GLOW_REACH = 2;
+	// LEDs sampled when measuring how far apart they are
+	final static int SPACING_SAMPLES = 256;
+
+	String recording;
+	float[] mapX,mapY;              // LED coordinates, from the map
+	int[] mapIndex;                 // and their indices in the pixel data
+	int width,height;
+	float frameRate = DEFAULT_FRAME_RATE;
+	float ledSize = 0;              // 0 == pick one from the map
+	int background = 0xFF000000;
+	float quality = 0.9f;
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	// layout, set up by layout()
+	int[] ledX,ledY;                // LED centers, in pixels
+	int spriteSize;
+	int[] sprite;                   // brightness of an LED and its glow, 0-256
+
+	// encoders, one per pool thread
+	ThreadLocal<Encoder> encoders;
+
+	/**
+	 * Renders a recording using LED positions from a Pixelblaze compatible
+	 * pixel map file.
+	 * @param recording name of the recording
+	 * @param mapFile name of the map file
+	 * @param width width of the rendered images
+	 * @param height height of the rendered images
+	 */
+	public OfflineRenderer(String recording,String mapFile,int width,int height) throws IOException {
+		this(recording,width,height);
+		readMap(mapFile);
+	}
+
+	/**
+	 * Renders a recording using the LED positions in a list, from
+	 * PixelTeleporter.importPixelblazeMap() or made by the sketch.
+	 */
+	public OfflineRenderer(String recording,List<ScreenLED> leds,int width,int height) {
+		this(recording,width,height);
+		int i = 0;
+
+		allocateMap(leds.size());
+		for (ScreenLED led : leds) {
+			mapX[i] = led.x;
+			mapY[i] = led.y;
+			mapIndex[i] = led.index;
+			i++;
+		}
+	}
+
+	OfflineRenderer(String recording,int width,int height) {
+		if ((width <= 0) || (height <= 0)) throw new IllegalArgumentException("Image size must be positive");
+		this.recording = recording;
+		this.width = width;
+		this.height = height;
+	}
+
+	void allocateMap(int n) {
+		mapX = new float[n];
+		mapY = new float[n];
+		mapIndex = new int[n];
+	}
+
+	/**
+	 * Reads a map file the way importPixelblazeMap() does, but without a
+	 * sketch. Scale and centering don't matter, since the map is fit to
+	 * the image.
+	 */
+	void readMap(String filename) throws IOException {
+		JSONArray json;
+
+		try (Reader in = new FileReader(filename)) {
+			json = new JSONArray(in);
+			allocateMap(json.size());
+			for (int i = 0; i < json.size(); i++) {
+				JSONArray coords = json.getJSONArray(i);
+				if (coords.size() < 2) throw new IOException(filename + " is not a pixel map");
+				mapX[i] = coords.getFloat(0);
+				mapY[i] = coords.getFloat(1);
+				mapIndex[i] = i;
+			}
+		} catch (RuntimeException e) {
+			throw new IOException(filename + " is not a pixel map",e);
+		}
+	}
+
+	/**
+	 * Sets the frame rate of the output.  Frames are taken from the recording
+	 * at regular intervals -- repeated or skipped as needed -- so the output
+	 * plays at the speed it was recorded.  0 renders every recorded frame
+	 * exactly once.  Default is 30 frames per second.
+	 */
+	public void setFrameRate(float fps) {
+		frameRate = Math.max(0,fps);
+	}
+
+	/**
+	 * Sets the diameter of each LED, in pixels, not counting its glow.
+	 * 0, the default, sizes them to suit the spacing of the map.
+	 */
+	public void setLedSize(float pixels) {
+		ledSize = Math.max(0,pixels);
+	}
+
+	/**
+	 * Sets the background color.  Default is black.
+	 */
+	public void setBackground(int rgb) {
+		background = 0xFF000000 | rgb;
+	}
+
+	/**
+	 * Sets video quality, from 0 to 1.  Default is 0.9.
+	 */
+	public void setQuality(float quality) {
+		this.quality = Math.max(0,Math.min(1,quality));
+	}
+
+	/**
+	 * Sets the number of threads that draw and encode frames.  Default is
+	 * one for each core.
+	 */
+	public void setThreads(int n) {
+		threads = Math.max(1,n);
+	}
+
+	/**
+	 * Renders every frame to a PNG image, named frame000000.png and on,
+	 * in the specified directory.  The directory is created if need be.
+	 * @return number of images written
+	 */
+	public int renderImages(String directory) throws IOException {
+		Files.createDirectories(Paths.get(directory));
+		return render(directory,null);
+	}
+
+	/**
+	 * Renders every frame to a Motion JPEG AVI video file.
+	 * @return number of frames written
+	 */
+	public int renderVideo(String filename) throws IOException {
+		return render(filename,"jpeg");
+	}
+
+	/**
+	 * Decodes the recording and writes it out, in order, while the pool
+	 * draws and encodes frames.  format is "jpeg" for video, or null for
+	 * PNG images.  Up to a few frames per thread are in flight at once.
+	 */
+	int render(String output,final String format) throws IOException {
+		PlaybackTransport source = new PlaybackTransport(recording);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		ArrayDeque<FrameTask> inFlight = new ArrayDeque<FrameTask>();
+		AviWriter video = null;
+		long started = System.nanoTime();
+		int written = 0;
+
+		try {
+			layout();
+			encoders = new ThreadLocal<Encoder>() {
+				protected Encoder initialValue() {
+					return new Encoder(format);
+				}
+			};
+			if (format != null) {
+				float fps = frameRate;
+				if (fps == 0) {
+					fps = (source.duration > 0) ? source.frameCount * 1e6f / source.duration : DEFAULT_FRAME_RATE;
+				}
+				video = new AviWriter(output,width,height,fps);
+			}
+
+			byte[] frame = new byte[0];
+			int count = 0;
+			for (int n = 0; ; n++) {
+				// find the recorded frame that's showing at this point in the output
+				if (frameRate > 0) {
+					long t = (long) (n * 1e6 / frameRate);
+					if (t > source.duration) break;
+					if (nextDue(source,source.nextOffset,t)) {
+						while (nextDue(source,source.nextOffset + source.length(source.nextOffset),t)) {
+							source.skip();
+						}
+						if (source.decode()) {
+							count = source.currentCount;
+							frame = Arrays.copyOf(source.current,3 * count);
+						}
+					}
+				}
+				else {
+					if (source.nextOffset >= source.end) break;
+					if (source.decode()) {
+						count = source.currentCount;
+						frame = Arrays.copyOf(source.current,3 * count);
+					}
+				}
+
+				FrameTask task = new FrameTask(frame,count);
+				pool.execute(task);
+				inFlight.add(task);
+				if (inFlight.size() >= 2 * threads) {
+					write(inFlight.remove().join(),output,video,written++);
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				write(inFlight.remove().join(),output,video,written++);
+			}
+			if (video != null) {
+				video.close();
+				video = null;
+			}
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			pool.shutdownNow();
+			if (video != null) video.close();
+			source.channel.close();
+			encoders = null;
+		}
+
+		float seconds = (System.nanoTime() - started) / 1e9f;
+		System.out.println(String.format("PixelTeleporter rendered %d frames in %.1f seconds, %.1f fps",
+		                                 written,seconds,written / seconds));
+		return written;
+	}
+
+	/**
+	 * True if there's a frame at file offset off, and it's due at or before time t
+	 */
+	boolean nextDue(PlaybackTransport source,long off,long t) throws IOException {
+		return (off < source.end) && (source.stamp(off) <= t);
+	}
+
+	void write(byte[] data,String output,AviWriter video,int n) throws IOException {
+		if (video != null) {
+			video.addFrame(data,data.length);
+		}
+		else {
+			Files.write(Paths.get(output,String.format("frame%06d.png",n)),data);
+		}
+	}
+
+	/**
+	 * Works out where the LEDs go in the image, and draws the dot and glow
+	 * that's added to the image for each one.
+	 */
+	void layout() {
+		float minX = Float.MAX_VALUE,maxX = -Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE,maxY = -Float.MAX_VALUE;
+		float scale,size,r,d,m;
+		int i,half,margin;
+
+		for (i = 0; i < mapX.length; i++) {
+			minX = Math.min(minX,mapX[i]); maxX = Math.max(maxX,mapX[i]);
+			minY = Math.min(minY,mapY[i]); maxY = Math.max(maxY,mapY[i]);
+		}
+
+		// fit the map to the image, leaving room for the glow at the edges
+		margin = Math.max(4,Math.min(width,height) / 20);
+		scale = Float.MAX_VALUE;
+		if (maxX > minX) scale = Math.min(scale,(width - 2 * margin) / (maxX - minX));
+		if (maxY > minY) scale = Math.min(scale,(height - 2 * margin) / (maxY - minY));
+		if (scale == Float.MAX_VALUE) scale = 1;
+
+		ledX = new int[mapX.length];
+		ledY = new int[mapX.length];
+		for (i = 0; i < mapX.length; i++) {
+			ledX[i] = Math.round(width / 2f + (mapX[i] - (minX + maxX) / 2) * scale);
+			ledY[i] = Math.round(height / 2f + (mapY[i] - (minY + maxY) / 2) * scale);
+		}
+
+		size = (ledSize > 0) ? ledSize : Math.max(2,Math.min(64,0.6f * spacing(scale)));
+		r = size / 2;
+		half = (int) Math.ceil(r * GLOW_REACH);
+		spriteSize = 2 * half + 1;
+		sprite = new int[spriteSize * spriteSize];
+		for (int y = 0; y < spriteSize; y++) {
+			for (int x = 0; x < spriteSize; x++) {
+				d = (float) Math.hypot(x - half,y - half);
+				if (d > r * GLOW_REACH) continue;
+				m = GLOW * (float) Math.exp(-3 * (d - r) / r);
+				if (d < r) m = 256;
+				else if (d < r + 1) m = 256 + (m - 256) * (d - r);    // antialiased edge
+				sprite[y * spriteSize + x] = Math.round(m);
+			}
+		}
+	}
+
+	/**
+	 * Typical distance from an LED to its nearest neighbor, in pixels, from
+	 * the median over a sample of LEDs.
+	 */
+	float spacing(float scale) {
+		int n = mapX.length;
+		int samples = Math.min(n,SPACING_SAMPLES);
+		float[] nearest = new float[samples];
+		float d;
+
+		if (n < 2) return Math.min(width,height) / 4f;
+		for (int s = 0; s < samples; s++) {
+			int i = (int) ((long) s * n / samples);
+			nearest[s] = Float.MAX_VALUE;
+			for (int j = 0; j < n; j++) {
+				d = (float) Math.hypot(ledX[j] - ledX[i],ledY[j] - ledY[i]);
+				if ((j != i) && (d > 0)) nearest[s] = Math.min(nearest[s],d);
+			}
+		}
+		Arrays.sort(nearest);
+		d = nearest[samples / 2];
+		return (d == Float.MAX_VALUE) ? 2 : d;
+	}
+
+	/**
+	 * Draws a frame into an image.  Each LED's sprite, tinted its color,
+	 * is added to what's already there, saturating at full brightness.
+	 */
+	void draw(int[] image,byte[] frame,int count) {
+		int half = spriteSize / 2;
+		int i,x,y,sx,sy,pix,m,c,r,g,b,rr,gg,bb;
+
+		Arrays.fill(image,background);
+		for (i = 0; i < ledX.length; i++) {
+			pix = mapIndex[i];
+			if ((pix < 0) || (pix >= count)) continue;
+			r = frame[3 * pix] & 0xFF;
+			g = frame[3 * pix + 1] & 0xFF;
+			b = frame[3 * pix + 2] & 0xFF;
+			if ((r | g | b) == 0) continue;
+
+			for (sy = 0; sy < spriteSize; sy++) {
+				y = ledY[i] - half + sy;
+				if ((y < 0) || (y >= height)) continue;
+				for (sx = 0; sx < spriteSize; sx++) {
+					x = ledX[i] - half + sx;
+					m = sprite[sy * spriteSize + sx];
+					if ((m == 0) || (x < 0) || (x >= width)) continue;
+
+					c = image[y * width + x];
+					rr = Math.min(255,((c >> 16) & 0xFF) + ((r * m) >> 8));
+					gg = Math.min(255,((c >> 8) & 0xFF) + ((g * m) >> 8));
+					bb = Math.min(255,(c & 0xFF) + ((b * m) >> 8));
+					image[y * width + x] = 0xFF000000 | (rr << 16) | (gg << 8) | bb;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A pool thread's image and image writer, reused for every frame it does
+	 */
+	class Encoder {
+		BufferedImage image = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		ImageWriter writer;
+		ImageWriteParam param;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		Encoder(String format) {
+			writer = ImageIO.getImageWritersByFormatName((format != null) ? format : "png").next();
+			param = writer.getDefaultWriteParam();
+			if (format != null) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+			}
+		}
+
+		byte[] encode() throws IOException {
+			out.reset();
+			try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+				writer.setOutput(stream);
+				writer.write(null,new IIOImage(image,null,null),param);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Draws and encodes one frame
+	 */
+	class FrameTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		byte[] frame;
+		int count;
+
+		FrameTask(byte[] frame,int count) {
+			this.frame = frame;
+			this.count = count;
+		}
+
+		protected byte[] compute() {
+			Encoder e = encoders.get();
+			draw(e.pixels,frame,count);
+			try {
+				return e.encode();
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("usage: OfflineRenderer recording map output [width] [height] [fps]");
+			return;
+		}
+		int width = (args.length > 3) ? Integer.parseInt(args[3]) : 1280;
+		int height = (args.length > 4) ? Integer.parseInt(args[4]) : 720;
+
+		OfflineRenderer r = new OfflineRenderer(args[0],args[1],width,height);
+		if (args.length > 5) r.setFrameRate(Float.parseFloat(args[5]));
+		if (args[2].toLowerCase().endsWith(".avi")) {
+			r.renderVideo(args[2]);
+		}
+		else {
+			r.renderImages(args[2]);
+		}
+	}
+}
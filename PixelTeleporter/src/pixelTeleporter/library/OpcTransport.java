@@ -0,0 +1,204 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ Open Pixel Control (OPC) TCP server transport.
+ <p>
+ Accepts any number of client connections on a single Selector.  Each
+ connection has its own direct buffer, big enough for the largest OPC
+ message, and messages are parsed in place -- pixels are decoded straight
+ from the socket buffer into the back buffer.
+ <p>
+ Each OPC channel writes to its own block of pixels.  By default every
+ channel starts at pixel 0, which suits the usual single-display setup.
+ Channel 0 (broadcast) always writes starting at pixel 0.  Since OPC has no
+ frame boundaries, a frame is published after each batch of reads that
+ contained at least one "set pixel colors" message, so updates to several
+ channels sent together show up together.  Pixels not sent in a frame keep
+ their previous contents.
+*/
+class OpcTransport extends PixelTransport implements Runnable {
+	final static int OPC_PORT = 7890;
+
+	final static int HEADER_SIZE = 4;        // channel, command, length (BE)
+	final static int MAX_MESSAGE_SIZE = HEADER_SIZE + 65535;
+	final static int CMD_SET_PIXELS = 0;
+
+	// Largest display we'll accept. Anything bigger is garbage.
+	final static int MAX_FRAME_PIXELS = 1 << 20;
+
+	ServerSocketChannel server;
+	Selector selector;
+	Thread thread;
+
+	int[] channelOffset;            // first pixel for each channel
+	int framePixels;                // receiver thread only
+	boolean changed;                // pixels received since last publish
+
+	OpcTransport(int port) {
+		super();
+		channelOffset = new int[256];
+
+		try {
+			server = ServerSocketChannel.open();
+			server.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+
+			selector = Selector.open();
+			server.register(selector,SelectionKey.OP_ACCEPT);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	void mapChannel(int channel,int first) {
+		if ((channel < 1) || (channel > 255) || (first < 0) || (first >= MAX_FRAME_PIXELS)) return;
+		channelOffset[channel] = first;
+	}
+
+	public void start() {
+		super.start();
+		thread = new Thread(this,"PixelTeleporter OPC");
+		thread.start();
+	}
+
+	public void run() {
+		while (running) {
+			waitForData();
+		}
+
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void stop() {
+		super.stop();
+		selector.wakeup();
+	}
+
+	/**
+	 * Blocks in the selector until a client connects or sends data, then
+	 * handles every ready connection and publishes the frame if anything
+	 * changed.
+	 */
+	void waitForData() {
+		try {
+			selector.select();
+		}
+		catch (IOException e) {
+			// nothing is lost yet; report it and try again next time around
+			System.out.println("PixelTeleporter: OPC server select failed: " + e.getMessage());
+			e.printStackTrace();
+			return;
+		}
+		if (!running) return;
+
+		for (SelectionKey key : selector.selectedKeys()) {
+			if (!key.isValid()) continue;
+			if (key.isAcceptable()) {
+				accept();
+			}
+			else if (key.isReadable()) {
+				read(key);
+			}
+		}
+		selector.selectedKeys().clear();
+
+		if (changed) {
+			frames.publishAndCopy(framePixels);
+			changed = false;
+		}
+	}
+
+	/**
+	 * Accepts a new client. A failed accept loses only that client, so
+	 * it is reported and the server carries on.
+	 */
+	void accept() {
+		SocketChannel client = null;
+
+		try {
+			client = server.accept();
+			if (client == null) return;
+
+			client.configureBlocking(false);
+			client.setOption(StandardSocketOptions.TCP_NODELAY,true);
+			client.register(selector,SelectionKey.OP_READ,ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE));
+			lastActivity = millis();
+		}
+		catch (IOException e) {
+			System.out.println("PixelTeleporter: OPC server unable to accept client: " + e.getMessage());
+			e.printStackTrace();
+			if (client != null) {
+				try { client.close(); } catch (IOException e2) { ; }
+			}
+		}
+	}
+	/**
+	 * Reads whatever the client has sent and handles every complete
+	 * message in its buffer. A partial message is moved to the start of
+	 * the buffer to be finished by the next read.
+	 */
+	void read(SelectionKey key) {
+		SocketChannel client = (SocketChannel) key.channel();
+		ByteBuffer buf = (ByteBuffer) key.attachment();
+		int pos,length;
+
+		try {
+			if (client.read(buf) < 0) {
+				key.cancel();
+				client.close();
+				return;
+			}
+		} catch (IOException e) {
+			// connection reset by the client. Just drop it.
+			key.cancel();
+			try { client.close(); } catch (IOException e2) { ; }
+			return;
+		}
+		lastActivity = millis();
+
+		buf.flip();
+		pos = 0;
+		while (buf.limit() - pos >= HEADER_SIZE) {
+			length = buf.getShort(pos + 2) & 0xFFFF;
+			if (buf.limit() - pos < HEADER_SIZE + length) break;
+
+			if (buf.get(pos + 1) == CMD_SET_PIXELS) {
+				setPixels(buf,buf.get(pos) & 0xFF,pos + HEADER_SIZE,length);
+			}
+			pos += HEADER_SIZE + length;
+		}
+		buf.position(pos);
+		buf.compact();
+	}
+
+	/**
+	 * Decodes a "set pixel colors" message into its channel's block of pixels
+	 */
+	void setPixels(ByteBuffer buf,int channel,int offset,int length) {
+		int first = channelOffset[channel];
+
+		if (length < format.bytesPerPixel) return;
+		long t = System.nanoTime();
+		framePixels = Math.max(framePixels,first + length / format.bytesPerPixel);
+		decodePixels(buf,offset,length,frames.back(framePixels),first);
+		changed = true;
+		frames.metrics.received(HEADER_SIZE + length,System.nanoTime() - t);
+	}
+}
@@ -0,0 +1,179 @@
+package pixelTeleporter.library;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of pixel data sent by Art-Net, sACN, DDP and OPC controllers.  Available formats are:
+ * <p>
+ * <li><strong>RGB</strong> - 3 bytes per pixel, red, green, blue. The default.</li>
+ * <li><strong>GRB</strong> - 3 bytes per pixel, green, red, blue, as sent to WS2812 strips.</li>
+ * <li><strong>BGR</strong> - 3 bytes per pixel, blue, green, red.</li>
+ * <li><strong>RGBW</strong> - 4 bytes per pixel, red, green, blue, white. For preview, white is
+ * added to the other three channels.</li>
+ * <li><strong>RGB16</strong> - 6 bytes per pixel, 16 bit big-endian red, green and blue.  The
+ * high bytes are displayed.  Full precision is kept in the high precision buffer, if enabled.</li>
+ * <p>
+ * Each format has its own decoding loop, so choosing one costs nothing per pixel.
+ */
+public enum PixelFormat {
+	RGB(3) {
+		int decode(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+			return decodeRGB(src,offset,length,dest,pix);
+		}
+	},
+
+	GRB(3) {
+		int decode(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+			int n = decodeRGB(src,offset,length,dest,pix);
+			for (int i = pix; i < pix + n; i++) {
+				int c = dest[i];
+				dest[i] = (c & 0xFF0000FF) | ((c & 0xFF00) << 8) | ((c >>> 8) & 0xFF00);
+			}
+			return n;
+		}
+	},
+
+	BGR(3) {
+		int decode(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+			int n = decodeRGB(src,offset,length,dest,pix);
+			for (int i = pix; i < pix + n; i++) {
+				int c = dest[i];
+				dest[i] = (c & 0xFF00FF00) | ((c & 0xFF) << 16) | ((c >>> 16) & 0xFF);
+			}
+			return n;
+		}
+	},
+
+	RGBW(4) {
+		int decode(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+			int i,w,white,start,end;
+
+			length = Math.min(length - (length % 4),(dest.length - pix) * 4);
+			end = offset + length;
+			start = pix;
+			for (i = offset; i < end; i += 4) {
+				w = src.getInt(i);
+				white = w & 0xFF;
+				dest[pix++] = 0xFF000000 |
+				              (Math.min(255,(w >>> 24) + white) << 16) |
+				              (Math.min(255,((w >>> 16) & 0xFF) + white) << 8) |
+				              Math.min(255,((w >>> 8) & 0xFF) + white);
+			}
+			return pix - start;
+		}
+	},
+
+	RGB16(6) {
+		int decode(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+			int i,start,end;
+
+			length = Math.min(length - (length % 6),(dest.length - pix) * 6);
+			end = offset + length;
+			start = pix;
+			for (i = offset; i < end; i += 6) {
+				dest[pix++] = 0xFF000000 |
+				              ((src.get(i) & 0xFF) << 16) |
+				              ((src.get(i + 2) & 0xFF) << 8) |
+				              (src.get(i + 4) & 0xFF);
+			}
+			return pix - start;
+		}
+
+		void decodeWide(ByteBuffer src,int offset,int[] argb,long[] dest,int pix,int count) {
+			int i = offset;
+			for (int end = pix + count; pix < end; pix++) {
+				dest[pix] = 0xFFFF000000000000L |
+				            ((long) (src.getShort(i) & 0xFFFF) << 32) |
+				            ((long) (src.getShort(i + 2) & 0xFFFF) << 16) |
+				            (src.getShort(i + 4) & 0xFFFF);
+				i += 6;
+			}
+		}
+	};
+
+	final int bytesPerPixel;
+
+	PixelFormat(int bytesPerPixel) {
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * Returns the number of bytes each pixel takes on the wire
+	 */
+	public int bytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/**
+	 * Decodes whole pixels from src into dest in ARGB format.
+	 * @param src buffer holding pixel data
+	 * @param offset position of first pixel in src
+	 * @param length number of bytes of pixel data
+	 * @param dest array to receive ARGB pixels
+	 * @param pix index of first pixel in dest
+	 * Returns number of pixels decoded.
+	 */
+	abstract int decode(ByteBuffer src,int offset,int length,int[] dest,int pix);
+
+	/**
+	 * Fills the high precision buffer, 16 bits per channel in 0xAAAARRRRGGGGBBBB
+	 * order, with count pixels just decoded by decode().  8 bit formats
+	 * scale their ARGB values up. Formats with more precision override this
+	 * to read it from src.
+	 */
+	void decodeWide(ByteBuffer src,int offset,int[] argb,long[] dest,int pix,int count) {
+		for (int end = pix + count; pix < end; pix++) {
+			int c = argb[pix];
+			dest[pix] = 0xFFFF000000000000L |
+			            ((long) (((c >>> 16) & 0xFF) * 0x101) << 32) |
+			            ((long) (((c >>> 8) & 0xFF) * 0x101) << 16) |
+			            ((c & 0xFF) * 0x101);
+		}
+	}
+
+	/**
+	 * Copies packed RGB pixels from a network buffer of bytes
+	 * into dest in ARGB format, which is way faster once we get back into
+	 * the Processing/OpenGL graphics API.
+	 * <p>
+	 * Pixels are converted four at a time from three big-endian ints, which
+	 * is about twice as fast as going byte by byte.  Any leftover pixels,
+	 * and buffers in little-endian order, take the slow path.
+	 * Returns number of pixels copied.
+	 */
+	static int decodeRGB(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+		int i,col,start,end,w0,w1,w2;
+
+		length = Math.min(length - (length % 3),(dest.length - pix) * 3);
+		i = offset;
+		end = offset + length;
+		start = pix;
+
+		// 12 bytes == 3 ints == 4 pixels: RGBR GBRG BRGB
+		if (src.order() == ByteOrder.BIG_ENDIAN) {
+			int bulkEnd = end - 11;
+			while (i < bulkEnd) {
+				w0 = src.getInt(i);
+				w1 = src.getInt(i + 4);
+				w2 = src.getInt(i + 8);
+				dest[pix]     = 0xFF000000 | (w0 >>> 8);
+				dest[pix + 1] = 0xFF000000 | ((w0 & 0xFF) << 16) | (w1 >>> 16);
+				dest[pix + 2] = 0xFF000000 | ((w1 & 0xFFFF) << 8) | (w2 >>> 24);
+				dest[pix + 3] = 0xFF000000 | w2;
+				pix += 4;
+				i += 12;
+			}
+		}
+
+		while (i < end) {
+			// processing color order = 0xAARRGGBB
+			col = 0xFF000000;                              //a - defaults to opaque
+			col |= Byte.toUnsignedInt(src.get(i++)) << 16; //r
+			col |= Byte.toUnsignedInt(src.get(i++)) << 8;  //g
+			col |= Byte.toUnsignedInt(src.get(i++));       //b
+			dest[pix++] = col;
+		}
+		return pix - start;
+	}
+}
@@ -30,6 +30,10 @@
  */
 package pixelTeleporter.library;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
 import processing.core.*;
 import processing.data.JSONArray;
@@ -49,22 +53,31 @@ import processing.event.MouseEvent;
 
 /*
  TODO LIST
- JSON save/restore renderer!! (include frame rate/frame count in saved data so we can recover timing on playback.  Or
- maybe timestamp of each frame so we can make the deltas the same.)
-
  RenderType.USER renderer support??
  
- Recieve from multiple transport types - PT Classic, PT Broadcast, Artnet, etc..
+ Recieve from multiple transport types - PT Classic, PT Broadcast, etc..
  */
 
 public class PixelTeleporter implements PConstants {
 	PApplet app;	
-	PixelTeleporterThread thread;
+	Transport transport;
 	Mover mover;
 	PTBackground bg;
 	int ledSize = 15;        
 	int pixelSize = 20;    
 	public int[] pixelBuffer;
+	int pixelCount = 0;
+	int[] flashBuffer = new int[0];
+	int lastFrame = 0;
+	long[] changed = null;        // change bitmap, 1 bit per pixel. null if not tracking
+	int[] shown = new int[0];     // pixels as of the last change check
+	int changedCount = 0;
+	FrameBlender blender = null;  // interpolates between frames. null if off
+	FrameRecorder recorder = null; // records incoming frames. null if not recording
+	PlaybackTransport player = null; // the transport, if playing a recording
+	// PShape doesn't override equals(), so this is an identity map.  Both
+	// sides are weak, so shapes the sketch has dropped can be collected.
+	WeakHashMap<PShape,WeakReference<ScreenShape>> shapeOwners = new WeakHashMap<PShape,WeakReference<ScreenShape>>();
 	boolean uiActive = false;
 	boolean autoDataActive = false;
 	boolean isController = false;
@@ -81,8 +94,6 @@ public class PixelTeleporter implements PConstants {
 
 	//constants
 	public final static String VERSION = "##library.prettyVersion##";	
-	final int MAX_PIXELS = 4096;
-	final int PIXEL_BUFFER_SIZE=(256+(MAX_PIXELS * 3)); 
 	final int MOUSE_MIN_MOVEMENT = 10; // dead zone for mouse UI rotate/translate
 
 	/**
@@ -94,11 +105,17 @@ public class PixelTeleporter implements PConstants {
 	 * @param clientPort Port number to listen on. Default: 8082
 	 */
 	public PixelTeleporter(PApplet pApp,String ipAddr,int serverPort,int clientPort) {
+		this(pApp);
+		attachTransport(new PixelTeleporterThread(ipAddr,clientPort,serverPort));
+	}
+
+	/**
+	 * Common initialization. The caller must attach a transport.
+	 */
+	private PixelTeleporter(PApplet pApp) {
 		this.app = pApp;	
 
 		mover = new Mover(this); 
-		thread = new PixelTeleporterThread(this,ipAddr,clientPort,serverPort,PIXEL_BUFFER_SIZE);
-		pixelBuffer = thread.getPixelBuffer();
 		bg = new PTBackground(app);
 		toolTip = new TooltipHandler();
 		setRenderMethod(RenderMethod.DEFAULT);
@@ -128,6 +145,11 @@ public class PixelTeleporter implements PConstants {
 		}		
 	}
 
+	private void attachTransport(Transport transport) {
+		this.transport = transport;
+		pixelBuffer = transport.getFrame();
+	}
+
 	/**
 	 * Creates and initializes a PixelTeleporter object.  Alternate constructor
 	 * to avoid breaking old scripts and firmware, this sets both client
@@ -155,6 +177,224 @@ public class PixelTeleporter implements PConstants {
 		this(pApp,ipAddr,8081,8082);
 	}
 
+	/**
+	 * Creates and initializes a PixelTeleporter object that gets its pixels
+	 * from the specified transport.  Use this to plug in your own source
+	 * of pixel data.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param transport source of frames of pixel data
+	 */
+	public PixelTeleporter(PApplet pApp,Transport transport) {
+		this(pApp);
+		attachTransport(transport);
+	}
+
+	/**
+	 * Creates a PixelTeleporter that listens for Art-Net (ArtDMX) data on the
+	 * standard Art-Net port, 6454. Consecutive universes are mapped to
+	 * consecutive blocks of pixelsPerUniverse RGB pixels, starting with
+	 * firstUniverse at pixel 0.
+	 * <p>
+	 * If the controller sends ArtSync, a frame is shown when the sync packet
+	 * arrives.  Otherwise, it's shown when every mapped universe has been
+	 * received.  Use mapUniverse() to map universes individually.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param firstUniverse Art-Net port address (15 bits) of the first universe
+	 * @param universes number of universes to map
+	 * @param pixelsPerUniverse RGB pixels in each universe (1-170)
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter artNet(PApplet pApp,int firstUniverse,int universes,int pixelsPerUniverse) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		ArtNetTransport artnet = new ArtNetTransport(ArtNetTransport.ARTNET_PORT);
+		artnet.mapRange(firstUniverse,universes,PApplet.constrain(pixelsPerUniverse,1,170));
+		pt.attachTransport(artnet);
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that listens for Art-Net data, with 170 RGB pixels
+	 * (510 channels) per universe.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param firstUniverse Art-Net port address (15 bits) of the first universe
+	 * @param universes number of universes to map
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter artNet(PApplet pApp,int firstUniverse,int universes) {
+		return artNet(pApp,firstUniverse,universes,170);
+	}
+
+	/**
+	 * Creates a PixelTeleporter that receives sACN (E1.31) data, joining the
+	 * multicast groups of the mapped universes. Consecutive universes are
+	 * mapped to consecutive blocks of pixelsPerUniverse RGB pixels, starting
+	 * with firstUniverse at pixel 0.
+	 * <p>
+	 * When several consoles send the same universe, the highest priority
+	 * source is shown. If the console sends E1.31 sync packets, a frame is
+	 * shown when the sync packet arrives.  Otherwise, it's shown when every
+	 * mapped universe has been received.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param firstUniverse number of the first universe (1-63999)
+	 * @param universes number of universes to map
+	 * @param pixelsPerUniverse RGB pixels in each universe (1-170)
+	 * @param interfaceName name of the network interface to receive multicast
+	 * on, or null to pick one automatically
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter sACN(PApplet pApp,int firstUniverse,int universes,
+			                           int pixelsPerUniverse,String interfaceName) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		SacnTransport sacn = new SacnTransport(interfaceName);
+		sacn.mapRange(firstUniverse,universes,PApplet.constrain(pixelsPerUniverse,1,170));
+		pt.attachTransport(sacn);
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that receives sACN (E1.31) data on the default
+	 * network interface, with 170 RGB pixels per universe.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param firstUniverse number of the first universe (1-63999)
+	 * @param universes number of universes to map
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter sACN(PApplet pApp,int firstUniverse,int universes) {
+		return sACN(pApp,firstUniverse,universes,170,null);
+	}
+
+	/**
+	 * Creates a PixelTeleporter that listens for DDP (Distributed Display
+	 * Protocol) data, as sent by WLED, xLights and others.  Pixels are
+	 * RGB, and a frame is shown when the sender sets the PUSH flag.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param port Port number to listen on. Default: 4048
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter ddp(PApplet pApp,int port) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(new DdpTransport(port));
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that listens for DDP data on the standard
+	 * port, 4048.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter ddp(PApplet pApp) {
+		return ddp(pApp,DdpTransport.DDP_PORT);
+	}
+
+	/**
+	 * Creates a PixelTeleporter that runs an Open Pixel Control (OPC) server,
+	 * accepting RGB "set pixel colors" messages over TCP from any number of
+	 * clients.  By default, every OPC channel writes starting at pixel 0. Use
+	 * mapOpcChannel() to give channels their own blocks of pixels.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param port TCP port to listen on. Default: 7890
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter opc(PApplet pApp,int port) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(new OpcTransport(port));
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that runs an Open Pixel Control server on
+	 * the standard port, 7890.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter opc(PApplet pApp) {
+		return opc(pApp,OpcTransport.OPC_PORT);
+	}
+
+	/**
+	 * Creates a PixelTeleporter that reads the Pixelblaze output expander
+	 * protocol straight from a serial port, pty or FIFO, with no bridge
+	 * program in between.  The file is opened when the sketch starts
+	 * reading.  Channels are shown one after another, in the order the
+	 * Pixelblaze sends them.
+	 * <p>
+	 * Java can't set serial port speeds, so set the port up first, with
+	 * something like "stty -F /dev/ttyS0 2000000 raw" on Linux.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param path name of the device or file to read
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter outputExpander(PApplet pApp,String path) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(new ExpanderTransport(path));
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that reads the Pixelblaze output expander
+	 * protocol from a stream.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param in stream of output expander data
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter outputExpander(PApplet pApp,InputStream in) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(new ExpanderTransport(in));
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that reads the Pixelblaze output expander
+	 * protocol from a channel, which must be in blocking mode.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param in channel carrying output expander data
+	 * @return new PixelTeleporter object
+	 */
+	public static PixelTeleporter outputExpander(PApplet pApp,ReadableByteChannel in) {
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(new ExpanderTransport(in));
+		return pt;
+	}
+
+	/**
+	 * Creates a PixelTeleporter that plays back a recording made with
+	 * startRecording(), with the original timing.  Use the playback
+	 * methods -- pausePlayback(), seekPlayback(), setPlaybackSpeed() and
+	 * so on -- to control it.
+	 *
+	 * @param pApp Pointer to currently running PApplet
+	 * @param filename name of the recording. Relative names are in the sketch folder.
+	 * @return new PixelTeleporter object, or null if the recording can't be opened
+	 */
+	public static PixelTeleporter playback(PApplet pApp,String filename) {
+		PlaybackTransport player;
+
+		try {
+			player = new PlaybackTransport(pApp.sketchPath(filename));
+		} catch (IOException e) {
+			System.out.println("PixelTeleporter: Unable to play " + filename);
+			e.printStackTrace();
+			return null;
+		}
+		PixelTeleporter pt = new PixelTeleporter(pApp);
+		pt.attachTransport(player);
+		pt.player = player;
+		return pt;
+	}
+
 	/**
 	 * Welcome.
 	 */
@@ -258,17 +498,322 @@ public class PixelTeleporter implements PConstants {
 	 */
 	public void start() {
 		if (uiActive) mover.initializeCamera();
-		thread.start();
+		transport.start();
 	}
 
 	/**
-	  To be called in draw() prior to rendering. Asks the transport to copy any 
-	  pixel data it has recieved from the network to the internal ARGB pixel
-	  buffer, which we can use more easily for rendering. 
-	 * @return number of pixels copied
+	  To be called in draw() prior to rendering. Asks the transport for the most
+	  recent frame of pixel data it has recieved and decoded, and makes it the
+	  internal ARGB pixel buffer, which we can use more easily for rendering. 
+	 * @return number of pixels available
 	 */
 	public int readData() {
-		return thread.readData();
+		// if we're paused, just hold the last frame
+		if (!isRunning) {
+			lastFrame = app.millis();
+			// we're not asking for frames, so keep the transport from timing
+			// out, or resuming would start with a disconnect flash
+			transport.keepAlive();
+			clearChanges();
+			return pixelCount;
+		}
+		else if (transport.latch()) {
+			pixelCount = transport.pixelCount();
+			lastFrame = app.millis();
+			if (recorder != null) {
+				if (recorder.failed) stopRecording();
+				else recorder.record(transport.getFrame(),pixelCount);
+			}
+			if (blender != null) {
+				blender.push(transport.getFrame(),pixelCount);
+				pixelBuffer = blender.blend();
+			}
+			else {
+				pixelBuffer = transport.getFrame();
+			}
+			trackChanges(pixelCount);
+			return pixelCount;
+		}
+		// otherwise check to see if we've lost connection and
+		// start the grey "disconnected" flash after a few seconds.
+		else if (!transport.isConnected()) {
+			if (blender != null) blender.reset();
+			int n = doDisconnectFlash();
+			trackChanges(n);
+			return n;
+		}
+		// between frames, keep fading toward the newest one
+		else if ((blender != null) && blender.blending()) {
+			pixelBuffer = blender.blend();
+			trackChanges(pixelCount);
+			return pixelCount;
+		}
+
+		clearChanges();
+		return 0;
+	}
+
+	/**
+	 * If change tracking is on, compares the first count pixels of the new
+	 * pixel buffer with those last shown, and marks the ones that differ.
+	 */
+	void trackChanges(int count) {
+		int i,col,n;
+
+		if (changed == null) return;
+		if (shown.length < pixelBuffer.length) {
+			shown = Arrays.copyOf(shown,pixelBuffer.length);
+			changed = new long[(pixelBuffer.length + 63) >>> 6];
+		}
+		Arrays.fill(changed,0L);
+		count = Math.min(count,pixelBuffer.length);
+		n = 0;
+		for (i = 0; i < count; i++) {
+			col = pixelBuffer[i];
+			if (col != shown[i]) {
+				shown[i] = col;
+				changed[i >>> 6] |= 1L << i;
+				n++;
+			}
+		}
+		changedCount = n;
+	}
+
+	/**
+	 * Marks every pixel unchanged.  Called when there's no new frame.
+	 */
+	void clearChanges() {
+		if ((changed == null) || (changedCount == 0)) return;
+		Arrays.fill(changed,0L);
+		changedCount = 0;
+	}
+
+	/**
+	 * Turns on frame interpolation.  When the sketch draws faster than
+	 * frames arrive, each pixel fades smoothly from one frame's color to the
+	 * next, instead of holding, then jumping. Adds about one frame of delay.
+	 * @param gammaCorrect true to blend in linear light, which looks more
+	 * natural on fades between bright and dark colors. false to blend the
+	 * raw channel values, which is a little faster.
+	 */
+	public void enableInterpolation(boolean gammaCorrect) {
+		blender = new FrameBlender(gammaCorrect);
+	}
+
+	/**
+	 * Turns on gamma correct frame interpolation
+	 */
+	public void enableInterpolation() {
+		enableInterpolation(true);
+	}
+
+	/**
+	 * Turns off frame interpolation, so every frame is shown exactly as received.
+	 */
+	public void disableInterpolation() {
+		if (blender == null) return;
+		blender = null;
+		if (pixelBuffer != flashBuffer) pixelBuffer = transport.getFrame();
+	}
+
+	/**
+	 * Starts recording incoming frames, as received, to the specified file.
+	 * Each frame is stamped with the time readData() picked it up, so timing
+	 * is as fine as the sketch's frame rate. Frames are written by a background
+	 * thread, so recording doesn't slow the sketch down. If writing fails,
+	 * recording stops, and isRecording() returns false. A seek index is
+	 * written alongside, in a file with the same name and a ".ptidx"
+	 * extension.  Stops any recording already in progress.
+	 * <p>
+	 * Compressed recordings store a full frame every second, and only the
+	 * differences between frames in between.  Typical patterns take 3 to 25
+	 * times less space than uncompressed.
+	 * @param filename name of the recording. Relative names are in the sketch folder.
+	 * @param compress true to compress the recording
+	 */
+	public void startRecording(String filename,boolean compress) {
+		stopRecording();
+		try {
+			recorder = new FrameRecorder(app.sketchPath(filename),Math.max(pixelCount,pixelBuffer.length),compress);
+			recorder.start();
+		} catch (IOException e) {
+			System.out.println("PixelTeleporter: Unable to record to " + filename);
+			e.printStackTrace();
+			recorder = null;
+		}
+	}
+
+	/**
+	 * Starts a compressed recording of incoming frames.
+	 * See startRecording(String,boolean).
+	 * @param filename name of the recording. Relative names are in the sketch folder.
+	 */
+	public void startRecording(String filename) {
+		startRecording(filename,true);
+	}
+
+	/**
+	 * Stops recording, and waits for the recording to be written to disk.
+	 */
+	public void stopRecording() {
+		if (recorder == null) return;
+		recorder.stop();
+		recorder = null;
+	}
+
+	/**
+	 * Returns true if frames are being recorded
+	 */
+	public boolean isRecording() {
+		return (recorder != null) && !recorder.failed;
+	}
+
+	/**
+	 * Pauses playback of a recording
+	 */
+	public void pausePlayback() {
+		if (player != null) player.pause();
+	}
+
+	/**
+	 * Resumes playback of a recording from where it was paused
+	 */
+	public void resumePlayback() {
+		if (player != null) player.play();
+	}
+
+	/**
+	 * Sets the playback speed. 1 plays at the recorded speed, 2 twice as fast,
+	 * 0.5 at half speed.  At high speeds, frames the sketch can't keep up
+	 * with are skipped.
+	 * @param multiplier speed relative to the recording (greater than 0)
+	 */
+	public void setPlaybackSpeed(float multiplier) {
+		if (player != null) player.setSpeed(multiplier);
+	}
+
+	/**
+	 * Turns looping on or off.  When looping, playback starts over at the
+	 * beginning when it reaches the end of the recording.
+	 */
+	public void setPlaybackLooping(boolean loop) {
+		if (player != null) player.setLooping(loop);
+	}
+
+	/**
+	 * Moves playback to the specified time, and shows the frame at that time.
+	 * @param seconds time from the start of the recording
+	 */
+	public void seekPlayback(float seconds) {
+		if (player != null) player.seek(seconds);
+	}
+
+	/**
+	 * Moves playback to the specified frame, and shows it.
+	 * @param frame number of the frame, starting at 0
+	 */
+	public void seekPlaybackFrame(int frame) {
+		if (player != null) player.seekFrame(frame);
+	}
+
+	/**
+	 * Pauses playback and steps forward or back the specified number of frames.
+	 * @param frames frames to move. Negative numbers step backwards.
+	 */
+	public void stepPlayback(int frames) {
+		if (player != null) player.step(frames);
+	}
+
+	/**
+	 * Returns the time of the frame now showing, in seconds from the
+	 * start of the recording. 0 if we're not playing a recording.
+	 */
+	public float getPlaybackPosition() {
+		return (player != null) ? player.position() : 0;
+	}
+
+	/**
+	 * Returns the length of the recording, in seconds
+	 */
+	public float getPlaybackDuration() {
+		return (player != null) ? player.duration() : 0;
+	}
+
+	/**
+	 * Returns the number of the frame now showing, or -1 if none has been
+	 * shown yet or we're not playing a recording.
+	 */
+	public int getPlaybackFrame() {
+		return (player != null) ? player.frame() : -1;
+	}
+
+	/**
+	 * Returns the number of frames in the recording
+	 */
+	public int getPlaybackFrameCount() {
+		return (player != null) ? player.frameCount() : 0;
+	}
+
+	/**
+	 * Turns on change tracking. Each time readData() gets a new frame, it
+	 * compares it with the previous one and records which pixels changed.
+	 * Costs a quick pass over the pixels per frame, which is repaid many
+	 * times over by renderers and sketches that can skip unchanged LEDs.
+	 */
+	public void enableChangeTracking() {
+		if (changed != null) return;
+		changed = new long[0];
+		shown = new int[0];
+		changedCount = 0;
+	}
+
+	/**
+	 * Turns off change tracking.
+	 */
+	public void disableChangeTracking() {
+		changed = null;
+		changedCount = 0;
+	}
+
+	/**
+	 * Returns true if the pixel changed in the last call to readData().
+	 * Always true if change tracking is off.
+	 * @param index index of pixel
+	 */
+	public boolean isChanged(int index) {
+		if (changed == null) return true;
+		return (index < shown.length) && ((changed[index >>> 6] & (1L << index)) != 0);
+	}
+
+	/**
+	 * Returns the change bitmap from the last call to readData(), or null if
+	 * change tracking is off.  Bit (i % 64) of element (i / 64) is set if pixel i
+	 * changed.  The array belongs to PixelTeleporter and may be replaced.
+	 */
+	public long[] getChangeBitmap() {
+		return changed;
+	}
+
+	/**
+	 * Returns the number of pixels that changed in the last call to readData(),
+	 * or the pixel count if change tracking is off.
+	 */
+	public int getChangedCount() {
+		return (changed == null) ? pixelCount : changedCount;
+	}
+
+	/**
+	 * Flash the entire pixel display light grey at a low frequency.
+	 * Used to signal that the server is disconnected.  Uses its own buffer,
+	 * so the transport's frames are left alone.
+	 */
+	int doDisconnectFlash() {
+		float bri = ((app.millis() - lastFrame) % 3000f) / 3000f;
+		if (bri > 0.5) bri = 1-bri;
+		if (flashBuffer.length < pixelBuffer.length) flashBuffer = new int[pixelBuffer.length];
+		Arrays.fill(flashBuffer,app.color(128 * bri));
+		pixelBuffer = flashBuffer;
+		return flashBuffer.length;
 	}
 
 	/**
@@ -279,15 +824,258 @@ public class PixelTeleporter implements PConstants {
  		via the readData() method.
 	 */	
 	public void requestData() {
-		thread.requestData();
+		transport.requestFrame();
 	}  
 
+	/**
+	 * Enables pipelined frame requests.  Instead of asking for one frame per
+	 * draw() and waiting for it, PixelTeleporter keeps several sequence
+	 * numbered requests in flight and asks for the next frame as soon as
+	 * each reply arrives, so the frame rate is no longer limited to one
+	 * network round trip per draw().  Late or out-of-order replies are discarded.
+	 * <p>
+	 * Requires a server that supports sequenced requests. Has no effect on
+	 * Art-Net, sACN, DDP, OPC and other push-only transports.
+	 * @param depth number of requests to keep in flight (1 or more)
+	 */
+	public void enablePipelining(int depth) {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setPipelineDepth(Math.max(1,depth));
+		}
+	}
+
+	/**
+	 * Returns to the default, one-request-per-frame data transfer mode. 
+	 */
+	public void disablePipelining() {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setPipelineDepth(0);
+		}
+	}
+
+	/**
+	 * Subscribes to frames pushed by the server.  Rather than requesting 
+	 * each frame, PixelTeleporter sends a single subscribe command and the
+	 * server sends every new frame as soon as it arrives from the Pixelblaze.
+	 * The subscription is renewed automatically, and expires on the server if
+	 * the sketch stops.  Several sketches can subscribe to the same server.
+	 * <p>
+	 * Requires a server that supports subscriptions. Has no effect on
+	 * Art-Net, sACN, DDP, OPC and other push-only transports.
+	 * @param leaseTime milliseconds the server keeps the subscription alive
+	 * without a renewal (1000 - 60000)
+	 */
+	public void enableSubscription(int leaseTime) {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setSubscription(PApplet.constrain(leaseTime,1000,60000));
+		}
+	}
+
+	/**
+	 * Subscribes to frames pushed by the server with the default 
+	 * 3 second lease time. 
+	 */
+	public void enableSubscription() {
+		enableSubscription(3000);
+	}
+
+	/**
+	 * Cancels a subscription and returns to the default, one-request-per-frame
+	 * data transfer mode. 
+	 */
+	public void disableSubscription() {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setSubscription(0);
+		}
+	}
+
+	/**
+	 * Enables compressed frames.  The server sends only the pixels that changed
+	 * since a recent frame, run length encoded, which greatly reduces network
+	 * traffic for large displays and patterns with solid areas.  Turns on
+	 * pipelining with a depth of 1 if neither pipelining nor subscription
+	 * is enabled.
+	 * <p>
+	 * Requires a server that supports compression.  Has no effect on
+	 * Art-Net, sACN, DDP, OPC and other push-only transports.
+	 */
+	public void enableCompression() {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setCompression(true);
+		}
+	}
+
+	/**
+	 * Returns to uncompressed frames.
+	 */
+	public void disableCompression() {
+		if (transport instanceof PixelTeleporterThread) {
+			((PixelTeleporterThread) transport).setCompression(false);
+		}
+	}
+
+	/**
+	 * Returns connection health and throughput statistics -- frame rate,
+	 * bytes per second, round trip time percentiles, lost requests, decode
+	 * time and frames shown and dropped.  Cheap enough to leave on, so
+	 * they're always being kept. Returns null for transports that aren't
+	 * built into the library.
+	 */
+	public TransportMetrics getMetrics() {
+		if (transport instanceof PixelTransport) {
+			return ((PixelTransport) transport).metrics();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the smoothed round trip time to the PixelTeleporter server, in
+	 * milliseconds, measured from frame requests to their replies.  0 if it
+	 * hasn't been measured yet, or if the transport doesn't request frames.
+	 */
+	public float getRoundTripTime() {
+		if (transport instanceof PixelTeleporterThread) {
+			return ((PixelTeleporterThread) transport).rtt();
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the current request timeout, in milliseconds.  Requests that
+	 * go unanswered this long are sent again.  It follows the round trip
+	 * time, and backs off when replies stop coming. 0 if the transport
+	 * doesn't request frames.
+	 */
+	public int getRequestTimeout() {
+		if (transport instanceof PixelTeleporterThread) {
+			return ((PixelTeleporterThread) transport).rto();
+		}
+		return 0;
+	}
+
+	/**
+	 * Maps a DMX universe to a block of pixels, for Art-Net and sACN.
+	 * Call in setup(), before start().
+	 * @param universe universe number
+	 * @param pixelOffset index of the universe's first pixel
+	 * @param pixels number of RGB pixels in the universe (1-170)
+	 */
+	public void mapUniverse(int universe,int pixelOffset,int pixels) {
+		if (transport instanceof PixelTransport) {
+			((PixelTransport) transport).mapUniverse(universe,pixelOffset,PApplet.constrain(pixels,1,170));
+		}
+	}
+
+	/**
+	 * Maps an Open Pixel Control channel to a block of pixels, for the
+	 * OPC transport. Call in setup(), before start().
+	 * @param channel OPC channel (1-255)
+	 * @param pixelOffset index of the channel's first pixel
+	 */
+	public void mapOpcChannel(int channel,int pixelOffset) {
+		if (transport instanceof PixelTransport) {
+			((PixelTransport) transport).mapChannel(channel,pixelOffset);
+		}
+	}
+
+	/**
+	 * Sets the layout of incoming pixel data, for Art-Net, sACN, DDP and OPC.
+	 * The default is RGB.  Call in setup(), before start().
+	 * <p>
+	 * Remember that a DMX universe holds fewer pixels in the larger formats:
+	 * 128 RGBW or 85 RGB16 pixels, so map universes accordingly.
+	 * @param format one of the PixelFormat values
+	 */
+	public void setPixelFormat(PixelFormat format) {
+		transport.setPixelFormat(format);
+	}
+
+	/**
+	 * Keeps a 16 bit per channel copy of each frame, which can be read with
+	 * getHighPrecisionPixels().  Useful with PixelFormat.RGB16.  8 bit formats
+	 * are scaled up.  Not available for the PixelTeleporter bridge.
+	 * Call in setup(), before start().
+	 */
+	public void enableHighPrecision() {
+		transport.enableHighPrecision();
+	}
+
+	/**
+	 * Returns the high precision version of the current frame, with 16 bits
+	 * per channel in 0xAAAARRRRGGGGBBBB order, or null if it isn't enabled.
+	 * The array belongs to the transport, and is replaced when the next
+	 * frame arrives.
+	 */
+	public long[] getHighPrecisionPixels() {
+		return transport.getWideFrame();
+	}
+
+	/**
+	 * Turns on the jitter buffer, which smooths out frames that arrive
+	 * unevenly, as they tend to over Wi-Fi.  Frames are queued as they arrive
+	 * and shown at the average rate they're being sent, about latency
+	 * milliseconds later.  Call in setup(), before start().
+	 * @param latency target delay in milliseconds. Two or three frame
+	 * times is usually plenty.
+	 * @param maxFrames most frames to hold.  If more arrive, the oldest
+	 * are dropped.
+	 */
+	public void enableJitterBuffer(int latency,int maxFrames) {
+		if (transport instanceof PixelTransport) {
+			((PixelTransport) transport).enableJitterBuffer(latency,maxFrames);
+		}
+	}
+
+	/**
+	 * Turns on the jitter buffer with a 50ms target delay, holding up to 8 frames.
+	 */
+	public void enableJitterBuffer() {
+		enableJitterBuffer(50,8);
+	}
+
+	/**
+	 * Returns the number of frames waiting in the jitter buffer, or 0 if
+	 * it isn't enabled.
+	 */
+	public int getJitterBufferDepth() {
+		JitterBuffer jb = jitterBuffer();
+		return (jb == null) ? 0 : jb.depth();
+	}
+
+	/**
+	 * Returns the number of times the jitter buffer has run dry and had to
+	 * stop and refill, or 0 if it isn't enabled.  If this keeps going up,
+	 * try a longer latency.
+	 */
+	public long getJitterBufferUnderruns() {
+		JitterBuffer jb = jitterBuffer();
+		return (jb == null) ? 0 : jb.metrics.getJitterBufferUnderruns();
+	}
+
+	/**
+	 * Returns the jitter buffer's estimate of the time between frames, in
+	 * milliseconds, or 0 if it isn't enabled. Frames waiting times this is
+	 * roughly the current delay.
+	 */
+	public float getJitterBufferInterval() {
+		JitterBuffer jb = jitterBuffer();
+		return (jb == null) ? 0 : jb.frameInterval();
+	}
+
+	JitterBuffer jitterBuffer() {
+		if (transport instanceof PixelTransport) {
+			return ((PixelTransport) transport).jitterBuffer();
+		}
+		return null;
+	}
+
 	/**
 	 * Gets the color of a pixel
 	 * @param index - index of pixel to be retrieved
 	 * @return - ARGB color of pixel at specified index
 	 * @note NO PARAMETER VALIDATION HERE. It's supposed to be fast! So be careful
-	 * not to request pixels outside the valid range (0-4095) unless you just happen to like
+	 * not to request pixels outside the valid range (0-4095, or the size of the largest
+	 * frame received so far if that's bigger) unless you just happen to like
 	 * being shut down by exceptions.
 	 */
 	public int getPixel(int index) {
@@ -381,7 +1169,8 @@ public class PixelTeleporter implements PConstants {
 	public void dispose() {
 		disableUI();
 		disableAutoData();
-		thread.quit();
+		stopRecording();
+		transport.stop();
 		refCount--;
 	}  
 
@@ -553,10 +1342,11 @@ public class PixelTeleporter implements PConstants {
 	 * <li><strong>RenderMethod.DRAW3D</strong>   - renders all objects in 3D space using Processing graphics API calls</li>
 	 * <li><strong>RenderMethod.REALISTIC2D</strong> - uses Processing API calls to render realistic video-quality LED objects.
 	 * Looks great, but performance will vary depending on your computer and GPU.</li> 
-	 * <li><strong>RenderMethod.FILE</strong> - records incoming LED data to a JSON file for later playback. Useful for making
-	 * movies and debugging.</li>
 	 * <li><strong>RenderMethod.SHADER3D</strong> - NOT YET IMPLEMENTED - Does nothing at the moment. (Uses OpenGL and GLSL to
 	 *  render highly detailed objects in 3D space. Performance may vary greatly depending on your GPU.) </li>
+	 * <p>
+	 * To record incoming LED data for later playback, which is useful for making movies and
+	 * debugging, see startRecording().
 	 */
 	public void setRenderMethod(RenderMethod m) {
 		LEDRenderer r = new HDRenderFirstPass(this,m);
@@ -1,200 +1,718 @@
 package pixelTeleporter.library;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.SocketOption;
-import java.net.SocketOptions;
-import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import processing.core.*;
-
 /**
  PixelTeleporter UDP transport.
  Handles requesting a frame of pixel data from a machine on the net,
  converting the pixels to a Processing-friendly format, and moving
  them into PixelTeleporter's internal frame buffer.
 <p>
- Once started, loops waiting for datagrams, yielding on UDP receive()
- timeouts.
+ Pixels are decoded on the receiver thread (see DatagramTransport) and
+ handed to the drawing thread through a lock-free triple buffer
+ (FrameExchange), so readData() only has to swap buffers.
+<p>
+ By default, one frame is requested per draw() call and the server replies
+ with raw RGB data.  In pipelined mode, requests carry a 16-bit sequence
+ number that the server echoes in a short header, several requests are
+ kept in flight at once, and the receiver thread sends a new request as
+ each reply arrives.  Replies older than the newest one already shown are
+ discarded.
+<p>
+ In subscription mode, the client sends a single subscribe command with a
+ lease time, renewed periodically from the receiver thread, and the server
+ pushes each new frame as soon as it is available.  Pushed frames use the
+ same header as sequenced replies, carrying the server's frame number.
+<p>
+ Frames too large for a single datagram are sent in chunks, marked by the
+ FLAG_CHUNKED bit in the header and followed by an extended header giving
+ the chunk's index, the number of chunks, its pixel offset and the total
+ pixels in the frame. Chunks are decoded straight into the back buffer as
+ they arrive, and the frame is published when the last one is in.  If a
+ chunk of a newer frame arrives before a frame is complete, the incomplete
+ frame is dropped.
+<p>
+ With compression enabled, sequenced requests and subscriptions tell the
+ server that we can decode run length encoded frames, and give the id of
+ the newest frame we hold.  The server can then send just the XOR of the
+ new frame and that one, run length encoded.  A few recent frames are kept
+ as references, since pipelined replies can be based on older frames.  If
+ a delta arrives whose base we don't have, we ask for a keyframe.
+<p>
+ Requests that go unanswered for longer than the retransmission timeout
+ are assumed lost and sent again.  The timeout adapts to the measured round
+ trip time the way TCP's does (RFC 6298): smoothed RTT plus four times its
+ mean deviation.  Each timeout in a row doubles it, up to MAX_RTO, so a
+ server that has gone away isn't flooded with requests.  The receiver
+ thread wakes up for pipelined timeouts even when nothing arrives, so a
+ lost reply never stalls the stream.
 */
-class PixelTeleporterThread extends Thread {  
-	final int UDP_NONE=0;              // states for UDP listener
-	final int UDP_REQUESTED=0x01;
-	final int UDP_RECEIVED=0x03;
-
-	//empty array to return when no packet has been received.
-//	final static byte [] NO_PACKET = {};
-	
-	// Timeout value, in milliseconds, for "disconnected" indicator
-	final int DISCONNECT_TIMEOUT = 5000;
-
-	//command to fetch a frame from the server  
-	final static byte CMD_REQUEST_FRAME = (byte) 0xF0; 	
-
-	PixelTeleporter parent;
-	DatagramSocket ds; 
+class PixelTeleporterThread extends DatagramTransport {
+	// Time, in milliseconds, without a requestFrame() call before we
+	// consider the sketch paused and stop sending requests on our own
+	final static int PAUSE_TIME = 500;
+
+	// retransmission timeout limits, in milliseconds.  INITIAL_RTO is used
+	// until the round trip time has been measured.
+	final static int MIN_RTO = 20;
+	final static int INITIAL_RTO = 250;
+	final static int MAX_RTO = 2000;
+
+	//command to fetch a frame from the server
+	final static byte CMD_REQUEST_FRAME = (byte) 0xF0;
+	//command to fetch a frame, with sequence number. Reply has a header
+	final static byte CMD_REQUEST_FRAME_SEQ = (byte) 0xF1;
+	//subscribe to pushed frames.  Bytes 1-2 are the lease time in ms (BE)
+	final static byte CMD_SUBSCRIBE = (byte) 0xF2;
+	//cancel subscription
+	final static byte CMD_UNSUBSCRIBE = (byte) 0xF3;
+	final static int SEQ_HEADER_SIZE = 4;  // command, flags, sequence (BE)
+
+	// header flags
+	final static int FLAG_CHUNKED = 0x01;
+	// chunked header adds chunk index(2), chunk count(2), pixel offset(4)
+	// and total pixels(4), all big endian
+	final static int CHUNK_HEADER_SIZE = 16;
+	// compressed frames. See the server's udpServer.h for details.
+	final static int REQ_COMPRESS = 0x01;
+	final static int REQ_HAVE_BASE = 0x02;
+	final static int FLAG_RLE = 0x02;
+	final static int FLAG_DELTA = 0x04;
+	// frame id(2), base frame id(2), pixels in datagram(4), all big endian
+	final static int COMP_HEADER_SIZE = 8;
+	// number of recent frames kept as delta references
+	final static int REF_FRAMES = 8;
+	// minimum time, in milliseconds, between keyframe requests
+	final static int KEYFRAME_RETRY = 200;
+	final static int[] MISSING_REFERENCE = new int[0];
+	// Largest frame we'll try to reassemble. Anything bigger is garbage.
+	final static int MAX_FRAME_PIXELS = 1 << 20;
+
+	// How far back, in frames, a sequence number can be and still be
+	// considered stale rather than a restarted server
+	final static int STALE_WINDOW = 256;
+	// requests whose send times we remember, for round trip measurement
+	final static int RTT_SLOTS = 256;
+
+	InetSocketAddress serverAddress;
 	int clientPort;
 	int serverPort;
-	byte[] buffer;
-	byte[] sendbuf;
-	public int[] pixelBuffer;
-	DatagramPacket datagramIn;
-	DatagramPacket datagramOut;
-	
-	boolean running;   
-	int status;
-	int lastActivity;
-	
-	PixelTeleporterThread(PixelTeleporter parent,String ipAddr,
-			              int clientPort, int serverPort, int bufsize) {
-		this.parent = parent;
+	ByteBuffer sendbuf;
+
+	// pipelined request state. nextSeq, lastSeq and outstanding are
+	// guarded by this object's monitor
+	volatile int pipelineDepth;     // 0 == classic stop-and-wait
+	int nextSeq;                    // sequence number of next request
+	int lastSeq;                    // newest reply accepted
+	int outstanding;                // requests sent but not yet answered
+	int deadline;                   // time at which outstanding requests time out
+	volatile int lastRequest;       // time of last requestFrame() call
+
+	// subscription state.  nextRenewal is receiver thread only
+	volatile int leaseTime;         // 0 == not subscribed
+	int nextRenewal;                // time to send next subscribe command
+	boolean resync;                 // accept next sequence number unconditionally
+
+	// chunked frame reassembly. Receiver thread only.
+	boolean assembling;             // true while a chunked frame is incomplete
+	int assemblyId;                 // sequence number of frame being assembled
+	int chunkCount;                 // total chunks in the frame
+	int chunksReceived;             // chunks received so far
+	int framePixels;                // total pixels in the frame
+	long[] chunkMask = new long[4]; // chunks received, one bit per chunk
+	int assemblyFlags;              // header flags of frame being assembled
+	int assemblyFrameId;            // compressed frame id of frame being assembled
+	int[] assemblyRef;              // delta reference for frame being assembled
+
+	// compression state.  The reference ring is receiver thread only.
+	volatile boolean compression;   // ask for compressed frames
+	volatile int baseId = -1;       // id of newest reference frame. -1 == none
+	int[][] refPixels = new int[REF_FRAMES][];
+	int[] refId = new int[REF_FRAMES];
+	int[] refSize = new int[REF_FRAMES];
+	int refCount;                   // valid references
+	int refNewest;                  // index of newest reference
+	int lastKeyRequest;             // time of last keyframe request
+
+	// round trip time.  Send times are guarded by this object's monitor
+	long[] sentAt = new long[RTT_SLOTS];  // System.nanoTime() each sequenced request was sent
+	long classicSentAt;             // same, for the last classic request
+	boolean classicRetry;           // classic requests timed out since the last reply
+	volatile long srtt;             // smoothed round trip time in ns. 0 == no samples yet
+	long rttvar;                    // mean deviation of round trip time, in ns
+	volatile int rto = INITIAL_RTO; // retransmission timeout, in ms
+
+	PixelTeleporterThread(String ipAddr,int clientPort,int serverPort) {
+		super(clientPort);
 		this.clientPort = clientPort;
 		this.serverPort = serverPort;
-		buffer = new byte[bufsize];
-		pixelBuffer = new int[this.parent.MAX_PIXELS];  
-		sendbuf = new byte[128];  		
-		sendbuf[0] = CMD_REQUEST_FRAME;  
-		datagramIn = new DatagramPacket(buffer, buffer.length); 
-
-		InetSocketAddress sourceAddress = new InetSocketAddress(ipAddr,serverPort);    
-		datagramOut = new DatagramPacket(sendbuf,4,sourceAddress);
-
-		status = UDP_NONE;
-		lastActivity = parent.app.millis();
-		
-		try {
-			boolean on = true;
-			ds = new DatagramSocket(null);
-			ds.setSoTimeout(0);
-			ds.setReuseAddress(true);
-			ds.bind(new InetSocketAddress(clientPort));
 
-		} catch (Exception e) {
-			e.printStackTrace();
+		sendbuf = ByteBuffer.allocateDirect(6);
+		serverAddress = new InetSocketAddress(ipAddr,serverPort);
+		source = serverAddress;
+	}
+
+	/**
+	 * If data isn't already waiting to be read, ask for an update. In pipelined
+	 * mode, tops up the number of requests in flight instead. In subscription
+	 * mode the server sends frames on its own, so there is nothing to do.
+	 */
+	public void requestFrame() {
+		lastRequest = millis();
+		if (leaseTime > 0) return;
+		if (pipelineDepth > 0) {
+			fillPipeline();
+			return;
 		}
+		if (frameReady()) return;
+
+		requestClassic();
 	}
-	
-	PApplet getApplet() {
-		return parent.app;
+
+	/**
+	 * Sends a classic request.  Normally that's once per draw, whether or not
+	 * the last one has been answered.  If the oldest unanswered request has
+	 * timed out, counts it lost and backs off, and until the next reply
+	 * arrives, only asks again when the backed off timeout expires.
+	 */
+	synchronized void requestClassic() {
+		long age = System.nanoTime() - classicSentAt;
+
+		if ((classicSentAt != 0) && (age >= rto * 1000000L)) {
+			timeout(1);
+			classicSentAt = 0;
+			classicRetry = true;
+			frames.metrics.retransmits.increment();
+		}
+		else if ((classicSentAt != 0) && classicRetry) {
+			return;
+		}
+		sendRequest(CMD_REQUEST_FRAME,0);
 	}
 
-	/** 
-	 * Returns true if we have recieved data or a ping from the
-	 * current server within the last DISCONNECT_TIMEOUT milliseconds  
-	 */	
-	public boolean isConnected() {
-		return ((parent.app.millis() - lastActivity) < DISCONNECT_TIMEOUT);		
+	/**
+	 * Sets the number of sequenced requests to keep in flight. 0 returns
+	 * to classic, one-request-per-draw() mode.
+	 */
+	synchronized void setPipelineDepth(int depth) {
+		if (depth > 0) setSubscription(0);
+		pipelineDepth = Math.max(0,depth);
+		lastSeq = (nextSeq - 1) & 0xFFFF;
+		outstanding = 0;
 	}
 
-	/** 
-	 * If data isn't already waiting to be read, ask for an update.  
+	/**
+	 * Subscribes to frames pushed by the server, with the specified lease
+	 * time in milliseconds. 0 cancels the subscription. The lease is renewed
+	 * by the receiver thread at 1/3 of the lease time.
 	 */
-	public void requestData() {     
-		if (available()) return;
+	synchronized void setSubscription(int lease) {
+		if (lease > 0) {
+			pipelineDepth = 0;
+			resync = true;
+			sendRequest(CMD_SUBSCRIBE,lease);
+			nextRenewal = millis() + lease / 3;
+			leaseTime = lease;
+		}
+		else if (leaseTime > 0) {
+			leaseTime = 0;
+			sendRequest(CMD_UNSUBSCRIBE,0);
+		}
+		// let the receiver thread pick up its new renewal schedule
+		mux.wakeup();
+	}
+
+	/**
+	 * Sends sequenced requests until pipelineDepth are in flight.  If the
+	 * outstanding requests have timed out, assumes they were lost and
+	 * replaces them.
+	 */
+	synchronized void fillPipeline() {
+		boolean retry = false;
+		boolean idle = (outstanding == 0);
+
+		if ((outstanding > 0) && ((millis() - deadline) >= 0)) {
+			timeout(outstanding);
+			outstanding = 0;
+			retry = true;
+		}
+		if (outstanding == 0) deadline = millis() + rto;
+
+		while (outstanding < pipelineDepth) {
+			sendRequest(CMD_REQUEST_FRAME_SEQ,nextSeq);
+			nextSeq = (nextSeq + 1) & 0xFFFF;
+			outstanding++;
+			if (retry) frames.metrics.retransmits.increment();
+		}
+
+		// the receiver thread may be asleep with no timeout set
+		if (idle && !retry && (outstanding > 0)) mux.wakeup();
+	}
+
+	/**
+	 * Counts lost requests after a timeout, and doubles the timeout
+	 * for the next try.
+	 */
+	synchronized void timeout(int lost) {
+		frames.metrics.timeouts.increment();
+		frames.metrics.requestsLost.add(lost);
+		rto = Math.min(rto * 2,MAX_RTO);
+	}
+
+	/**
+	 * Accepts or rejects a sequenced reply. Replies that are not newer than
+	 * the last accepted one are stale, duplicated or out of order.
+	 * @return true if the reply should be displayed
+	 */
+	synchronized boolean acceptSequence(int seq) {
+		int age = (short) (seq - lastSeq);
+
+		// a big jump backwards means the server restarted, not a stale frame
+		if (!resync && (age <= 0) && (age > -STALE_WINDOW)) return false;
+		resync = false;
+
+		// requests sent before this one were either answered out of
+		// order or lost, so only those sent after it are still in flight
+		int inFlight = (nextSeq - seq - 1) & 0xFFFF;
+		if ((pipelineDepth > 0) && (inFlight < outstanding)) {
+			frames.metrics.requestsLost.add(outstanding - inFlight - 1);
+		}
+		lastSeq = seq;
+		outstanding = inFlight;
+		deadline = millis() + rto;
+		return true;
+	}
+
+	/**
+	 * The bridge always sends 8 bit RGB, so the pixel format can't be changed.
+	 */
+	public void setPixelFormat(PixelFormat format) {
+		;
+	}
+
+	/**
+	 * Not supported. The bridge only sends 8 bits per channel.
+	 */
+	public void enableHighPrecision() {
+		;
+	}
+
+	/**
+	 * Turns compressed frames on or off. Compressed frames need sequence
+	 * numbered replies, so if we're in classic mode, switches to pipelined
+	 * mode with one request in flight.
+	 */
+	synchronized void setCompression(boolean on) {
+		compression = on;
+		baseId = -1;
+		if (!on) return;
+
+		if ((pipelineDepth == 0) && (leaseTime == 0)) setPipelineDepth(1);
+		// tell the server right away
+		if (leaseTime > 0) sendRequest(CMD_SUBSCRIBE,leaseTime);
+	}
+
+	/**
+	 * Drops our delta base so the server sends a keyframe.  When subscribed,
+	 * also sends a subscription renewal, at most every KEYFRAME_RETRY ms, since
+	 * that's the only time the server hears from us.
+	 */
+	void requestKeyframe() {
+		baseId = -1;
+		if ((leaseTime > 0) && ((millis() - lastKeyRequest) > KEYFRAME_RETRY)) {
+			lastKeyRequest = millis();
+			sendRequest(CMD_SUBSCRIBE,leaseTime);
+		}
+	}
+
+	synchronized void sendRequest(byte cmd,int seq) {
+		int base;
 
 		try {
-			ds.send(datagramOut);
-			status = UDP_REQUESTED; 
-		} 
+			sendbuf.clear();
+			sendbuf.put(cmd).putShort((short) seq);
+			if (compression && ((cmd == CMD_REQUEST_FRAME_SEQ) || (cmd == CMD_SUBSCRIBE))) {
+				base = baseId;
+				sendbuf.put((byte) ((base < 0) ? REQ_COMPRESS : REQ_COMPRESS | REQ_HAVE_BASE));
+				sendbuf.putShort((short) base);
+			}
+			else {
+				sendbuf.put((byte) 0);
+			}
+			sendbuf.flip();
+			if (cmd == CMD_REQUEST_FRAME_SEQ) {
+				sentAt[seq & (RTT_SLOTS - 1)] = System.nanoTime();
+				frames.metrics.requestsSent.increment();
+			}
+			else if (cmd == CMD_REQUEST_FRAME) {
+				// time from the oldest unanswered request
+				if (classicSentAt == 0) classicSentAt = System.nanoTime();
+				frames.metrics.requestsSent.increment();
+			}
+			channel.send(sendbuf,serverAddress);
+		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public boolean available() {
-		return (status == UDP_RECEIVED);    
+	/**
+	 * Measures the round trip time of the request with the specified sequence
+	 * number, or the last classic request if seq is -1, and updates the
+	 * retransmission timeout.  Only the first reply to a request counts, and
+	 * replies to retransmitted classic requests don't count at all, since we
+	 * can't tell which request they answer.
+	 */
+	synchronized void sampleRtt(int seq) {
+		long sent,rtt;
+
+		if (seq < 0) {
+			sent = classicRetry ? 0 : classicSentAt;
+			classicSentAt = 0;
+			classicRetry = false;
+		}
+		else {
+			sent = sentAt[seq & (RTT_SLOTS - 1)];
+			sentAt[seq & (RTT_SLOTS - 1)] = 0;
+		}
+		if (sent == 0) return;
+
+		rtt = System.nanoTime() - sent;
+		if (srtt == 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else {
+			rttvar += (Math.abs(srtt - rtt) - rttvar) >> 2;
+			srtt += (rtt - srtt) >> 3;
+		}
+		rto = (int) Math.max(MIN_RTO,Math.min(MAX_RTO,(srtt + 4 * rttvar) / 1000000L));
+		frames.metrics.rtt.record(rtt / 1000);
 	}
-		
+
 	/**
-	 * Flash the entire pixel display light grey at a low frequency.
-	 * Used to signal that the server is disconnected.
-	 */	
-	int doDisconnectFlash() {
-	  float bri = ((parent.app.millis() - lastActivity) % 3000f) / 3000f;
-	  if (bri > 0.5) bri = 1-bri;
-	  Arrays.fill(pixelBuffer,parent.app.color(128 * bri));
-	  return pixelBuffer.length;				
+	 * Returns the smoothed round trip time to the server in milliseconds,
+	 * or 0 if it hasn't been measured. Only requested frames are measured,
+	 * so it isn't updated while subscribed.
+	 */
+	float rtt() {
+		return srtt / 1000000f;
 	}
 
-	/** 
-	 * Copies pixel colors from the network buffer of bytes into the transport's
-	 * internal ARGB pixel buffer, which is way faster once we get back into
-	 * the Processing/OpenGL graphics API. 
+	/**
+	 * Returns the current retransmission timeout in milliseconds
+	 */
+	int rto() {
+		return rto;
+	}
+
+	public void stop() {
+		setSubscription(0);
+		super.stop();
+	}
+
+	/**
+	 * Decodes a complete, single datagram frame into the back buffer
 	 * Returns number of pixels copied.
 	 */
-	int readData() {
-		byte [] data;
-		int i,pix,col;
-
-		if (available()) {
-			data = datagramIn.getData();
-			i = pix = 0;
-			while (i < datagramIn.getLength()) {
-				// processing color order = 0xAARRGGBB
-				col = 0xFF000000;                           //a - defaults to opaque 
-				col |= Byte.toUnsignedInt(data[i++]) << 16; //r
-				col |= Byte.toUnsignedInt(data[i++]) << 8;  //g
-				col |= Byte.toUnsignedInt(data[i++]);       //b
-				pixelBuffer[pix++] = col;
+	int decodeFrame(int offset,int length) {
+		return decodePixels(offset,length,frames.back(length / 3),0);
+	}
+
+	/**
+	 * Decodes run length encoded pixels from the receive buffer into dest,
+	 * XORing them with the corresponding reference pixels if ref isn't null.
+	 * @param pos position of first RLE control byte in receive buffer
+	 * @param end position following the last byte of RLE data
+	 * @param dest array to receive ARGB pixels
+	 * @param pix index of first pixel in dest
+	 * @param count number of pixels the data should decode to
+	 * @param ref reference frame for deltas, or null
+	 * @return count, or -1 if the data is malformed
+	 */
+	int decodeRle(int pos,int end,int[] dest,int pix,int count,int[] ref) {
+		int c,n,col,last;
+
+		last = pix + count;
+		while (pos < end) {
+			c = buffer.get(pos++) & 0xFF;
+			n = (c & 0x7F) + 1;
+			if (pix + n > last) return -1;
+
+			if ((c & 0x80) != 0) {
+				// run of n identical pixels
+				if (pos + 3 > end) return -1;
+				col = ((buffer.get(pos) & 0xFF) << 16) | ((buffer.get(pos + 1) & 0xFF) << 8)
+					  | (buffer.get(pos + 2) & 0xFF);
+				pos += 3;
+				if (ref == null) {
+					Arrays.fill(dest,pix,pix + n,0xFF000000 | col);
+					pix += n;
+				}
+				else {
+					while (n-- > 0) {
+						dest[pix] = ref[pix] ^ col;
+						pix++;
+					}
+				}
 			}
-			status = UDP_NONE;  
-			return datagramIn.getLength() / 3;
-		}
-		// if we're paused, just hold the last frame
-		else if (!parent.isRunning) {
-			lastActivity = parent.app.millis();
-			return datagramIn.getLength() / 3;			
-		}
-		// otherwise check to see if we've lost connection and 
-		// start the grey "disconnected" flash after a few seconds.
-		else if (!isConnected()) {
-          return doDisconnectFlash();
-		}
-		
-		return 0;
-	}     
-	
-	/**
-	 * Returns pointer to int array containing the last read set of pixels
-	 * in Processing's normal ARGB color format.
-	 */
-	public int[] getPixelBuffer() {
-		return pixelBuffer;
-	}
-
-	public void start() {
-		System.out.println("PixelTeleporter thread starting");  
-		running = true;
-		super.start();
-	}
-
-	public void run() {
-		while (running) {
-			waitForDatagram();
-			Thread.yield();
-		} 
-	}
-	
-	void quit() {
-		System.out.println("PixelTeleporter thread stopping"); 
-		running = false;  
-		interrupt();
-	}		
-
-	void waitForDatagram() {    
-		if (status == UDP_REQUESTED) {  
-			try {
-				ds.receive(datagramIn);
-				lastActivity = parent.app.millis();
-			} 
-			catch (IOException e) { // catch those pesky timeouts
-				status = UDP_NONE;  
+			else {
+				// n literal pixels
+				if (pos + 3 * n > end) return -1;
+				if (ref == null) {
+					pix += decodePixels(pos,3 * n,dest,pix);
+					pos += 3 * n;
+				}
+				else {
+					while (n-- > 0) {
+						col = ((buffer.get(pos) & 0xFF) << 16) | ((buffer.get(pos + 1) & 0xFF) << 8)
+							  | (buffer.get(pos + 2) & 0xFF);
+						pos += 3;
+						dest[pix] = ref[pix] ^ col;
+						pix++;
+					}
+				}
+			}
+		}
+		return (pix == last) ? count : -1;
+	}
+
+	/**
+	 * Returns the reference frame with the specified id and size, or null
+	 * if we don't have it.
+	 */
+	int[] findReference(int id,int size) {
+		int slot;
+
+		for (int i = 0; i < refCount; i++) {
+			slot = (refNewest - i + REF_FRAMES) % REF_FRAMES;
+			if ((refId[slot] == id) && (refSize[slot] == size)) return refPixels[slot];
+		}
+		return null;
+	}
+
+	/**
+	 * Saves a copy of a completed compressed frame as a reference for
+	 * future deltas, and makes it our base.
+	 */
+	void saveReference(int id,int[] src,int size) {
+		int slot = (refCount == 0) ? 0 : (refNewest + 1) % REF_FRAMES;
+
+		if ((refPixels[slot] == null) || (refPixels[slot].length < size)) {
+			refPixels[slot] = new int[size];
+		}
+		System.arraycopy(src,0,refPixels[slot],0,size);
+		refId[slot] = id;
+		refSize[slot] = size;
+		refNewest = slot;
+		if (refCount < REF_FRAMES) refCount++;
+		baseId = id;
+	}
+
+	/**
+	 * Looks up the reference for a compressed datagram. Returns null if it
+	 * isn't a delta, and MISSING_REFERENCE if it's a delta whose base we
+	 * don't have.
+	 */
+	int[] reference(int flags,int base,int size) {
+		int[] ref;
+
+		if ((flags & FLAG_DELTA) == 0) return null;
+		ref = findReference(base,size);
+		if (ref == null) {
+			requestKeyframe();
+			return MISSING_REFERENCE;
+		}
+		return ref;
+	}
+
+	/**
+	 * Handles a compressed, single datagram frame
+	 */
+	void receiveCompressed(int seq,int flags,int length) {
+		int id,base,pixels;
+		int[] ref,dest;
+
+		if (length < SEQ_HEADER_SIZE + COMP_HEADER_SIZE) return;
+		id = buffer.getShort(SEQ_HEADER_SIZE) & 0xFFFF;
+		base = buffer.getShort(SEQ_HEADER_SIZE + 2) & 0xFFFF;
+		pixels = buffer.getInt(SEQ_HEADER_SIZE + 4);
+		if ((pixels <= 0) || (pixels > MAX_FRAME_PIXELS)) return;
+
+		// a reply counts as answered even if we can't decode it, or the
+		// pipeline would stall until the timeout
+		if (!acceptSequence(seq)) return;
+		ref = reference(flags,base,pixels);
+		if (ref == MISSING_REFERENCE) return;
+
+		dest = frames.back(pixels);
+		if (decodeRle(SEQ_HEADER_SIZE + COMP_HEADER_SIZE,length,dest,0,pixels,ref) < 0) return;
+
+		saveReference(id,dest,pixels);
+		frames.publish(pixels);
+	}
+
+	/**
+	 * Handles one chunk of a multi-datagram frame.  Starts reassembly when the
+	 * first chunk of a new frame arrives, ignores duplicates and chunks from
+	 * older frames, and publishes the frame when all its chunks are in.
+	 */
+	void receiveChunk(int seq,int flags,int length) {
+		int index,count,offset,total,pixels,data,id,base;
+		int[] ref;
+
+		if (length < CHUNK_HEADER_SIZE) return;
+		index = buffer.getShort(4) & 0xFFFF;
+		count = buffer.getShort(6) & 0xFFFF;
+		offset = buffer.getInt(8);
+		total = buffer.getInt(12);
+
+		id = base = 0;
+		if ((flags & FLAG_RLE) != 0) {
+			if (length < CHUNK_HEADER_SIZE + COMP_HEADER_SIZE) return;
+			id = buffer.getShort(CHUNK_HEADER_SIZE) & 0xFFFF;
+			base = buffer.getShort(CHUNK_HEADER_SIZE + 2) & 0xFFFF;
+			pixels = buffer.getInt(CHUNK_HEADER_SIZE + 4);
+			data = CHUNK_HEADER_SIZE + COMP_HEADER_SIZE;
+		}
+		else {
+			pixels = (length - CHUNK_HEADER_SIZE) / 3;
+			data = CHUNK_HEADER_SIZE;
+		}
+
+		// sanity check
+		if ((index >= count) || (total <= 0) || (total > MAX_FRAME_PIXELS) ||
+			(offset < 0) || (pixels < 0) || (offset > total - pixels)) return;
+
+		// first chunk we've seen from a new frame.  Abandon any incomplete
+		// frame and start over.
+		if (!assembling || (seq != assemblyId)) {
+			if (!acceptSequence(seq)) return;
+			ref = reference(flags,base,total);
+			if (ref == MISSING_REFERENCE) {
+				// answered, but undecodable. Its other chunks are now stale.
+				assembling = false;
 				return;
-			}     
-			status = UDP_RECEIVED;
-		}  
+			}
+			assembling = true;
+			assemblyId = seq;
+			assemblyFlags = flags;
+			assemblyFrameId = id;
+			assemblyRef = ref;
+			chunkCount = count;
+			chunksReceived = 0;
+			framePixels = total;
+			if (chunkMask.length < (count + 63) / 64) {
+				chunkMask = new long[(count + 63) / 64];
+			}
+			Arrays.fill(chunkMask,0);
+		}
+		else if ((count != chunkCount) || (total != framePixels) ||
+				 (flags != assemblyFlags) || (id != assemblyFrameId)) {
+			return;
+		}
+
+		// skip duplicates
+		if ((chunkMask[index >> 6] & (1L << index)) != 0) return;
+
+		if ((flags & FLAG_RLE) != 0) {
+			if (decodeRle(data,length,frames.back(total),offset,pixels,assemblyRef) < 0) return;
+		}
+		else {
+			decodePixels(data,length - data,frames.back(total),offset);
+		}
+		chunkMask[index >> 6] |= (1L << index);
+
+		if (++chunksReceived == chunkCount) {
+			assembling = false;
+			if ((flags & FLAG_RLE) != 0) saveReference(id,frames.back(),total);
+			frames.publish(total);
+		}
+	}
+
+	/**
+	 * When subscribed, renews the lease if it's due and wakes the receiver
+	 * thread in time for the next renewal.  When pipelined, replaces timed
+	 * out requests and wakes the receiver thread in time for the next timeout.
+	 */
+	long beforeWait() {
+		int lease,wait;
+
+		lease = leaseTime;
+		if (lease > 0) {
+			wait = nextRenewal - millis();
+			if (wait <= 0) {
+				sendRequest(CMD_SUBSCRIBE,lease);
+				nextRenewal = millis() + lease / 3;
+				wait = lease / 3;
+			}
+			return wait;
+		}
+		return (pipelineDepth > 0) ? checkPipeline() : 0;
+	}
+
+	/**
+	 * Receiver thread: deals with timed out pipelined requests.  If the
+	 * sketch is still asking for frames, sends new ones, otherwise just
+	 * writes them off.  Returns the time until the next timeout, or 0 if
+	 * nothing is in flight.
+	 */
+	synchronized int checkPipeline() {
+		if (outstanding == 0) return 0;
+
+		if ((millis() - deadline) >= 0) {
+			if ((millis() - lastRequest) < PAUSE_TIME) {
+				fillPipeline();
+			}
+			else {
+				timeout(outstanding);
+				outstanding = 0;
+				return 0;
+			}
+		}
+		return Math.max(1,deadline - millis());
+	}
+
+	/**
+	 * Decodes a datagram and publishes the frame to the drawing thread.
+	 */
+	void receive(int length) {
+		int seq,flags;
+		byte cmd;
+
+		if ((pipelineDepth == 0) && (leaseTime == 0)) {
+			sampleRtt(-1);
+			frames.publish(decodeFrame(0,length));
+			return;
+		}
+
+		// sequenced reply or pushed frame.  Drop anything malformed or
+		// stale.
+		cmd = buffer.get(0);
+		if ((length >= SEQ_HEADER_SIZE)
+			&& ((cmd == CMD_REQUEST_FRAME_SEQ) || (cmd == CMD_SUBSCRIBE))) {
+			seq = buffer.getShort(2) & 0xFFFF;
+			flags = buffer.get(1) & 0xFF;
+			if (cmd == CMD_REQUEST_FRAME_SEQ) sampleRtt(seq);
+			if ((flags & FLAG_CHUNKED) != 0) {
+				receiveChunk(seq,flags,length);
+			}
+			else if ((flags & FLAG_RLE) != 0) {
+				receiveCompressed(seq,flags,length);
+			}
+			else if (acceptSequence(seq)) {
+				frames.publish(decodeFrame(SEQ_HEADER_SIZE,length - SEQ_HEADER_SIZE));
+			}
+		}
+	}
+
+	/**
+	 * Keeps the pipeline full if there is one and frames are still being
+	 * asked for (i.e. we're not paused.)
+	 */
+	void afterReceive() {
+		if ((pipelineDepth > 0) && ((millis() - lastRequest) < PAUSE_TIME)) fillPipeline();
 	}
 }
@@ -0,0 +1,172 @@
+package pixelTeleporter.library;
+
+import java.nio.ByteBuffer;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Base class for PixelTeleporter's network transports.  A transport
+ decodes incoming pixels on a receiver thread into the back buffer of
+ a FrameExchange and publishes complete frames.  The drawing thread picks
+ up the newest frame with latch().
+ <p>
+ Handles the parts common to all transports -- frame handoff and
+ connection status.  Transports don't depend on Processing,
+ so they can be used without a running sketch.
+*/
+abstract class PixelTransport implements Transport {
+	// Timeout value, in milliseconds, for "disconnected" indicator
+	final static int DISCONNECT_TIMEOUT = 5000;
+	// initial pixel buffer size. Grows to fit larger frames
+	final static int MIN_PIXELS = 4096;
+
+	FrameExchange frames;
+	PixelFormat format = PixelFormat.RGB;
+
+	volatile boolean running;
+	volatile int lastActivity;
+
+	PixelTransport() {
+		frames = new FrameExchange(MIN_PIXELS);
+		lastActivity = millis();
+	}
+
+	/**
+	 * Milliseconds since an arbitrary starting point, like PApplet.millis().
+	 * Only meaningful for measuring intervals.
+	 */
+	static int millis() {
+		return (int) (System.nanoTime() / 1000000L);
+	}
+
+	/**
+	 * Returns true if we have recieved data or a ping from the
+	 * current server within the last DISCONNECT_TIMEOUT milliseconds
+	 */
+	public boolean isConnected() {
+		return ((millis() - lastActivity) < DISCONNECT_TIMEOUT);
+	}
+
+	/**
+	 * Counts as activity, so a paused sketch doesn't see a disconnect
+	 */
+	public void keepAlive() {
+		lastActivity = millis();
+	}
+
+	/**
+	 * Asks the server for a frame, for transports that have to ask.
+	 * Does nothing by default.
+	 */
+	public void requestFrame() {
+		;
+	}
+
+	/**
+	 * Maps a DMX universe to a block of pixels, for universe based
+	 * transports. Does nothing by default.
+	 */
+	void mapUniverse(int universe,int first,int pixels) {
+		;
+	}
+
+	/**
+	 * Maps an Open Pixel Control channel to a block of pixels, for the OPC
+	 * transport. Does nothing by default.
+	 */
+	void mapChannel(int channel,int first) {
+		;
+	}
+
+	/**
+	 * Sets the layout of incoming pixel data.  Call before start().
+	 */
+	public void setPixelFormat(PixelFormat format) {
+		this.format = format;
+	}
+
+	/**
+	 * Keeps a 16 bit per channel copy of each frame, for formats with more
+	 * than 8 bits of precision. Call before start().
+	 */
+	public void enableHighPrecision() {
+		frames.enableWide();
+	}
+
+	/**
+	 * Returns the high precision version of the current frame, 16 bits per
+	 * channel in 0xAAAARRRRGGGGBBBB order, or null if it isn't enabled.
+	 * Valid until the next call to latch(), like getFrame().
+	 */
+	public long[] getWideFrame() {
+		return frames.frontWide();
+	}
+
+	/**
+	 * Replaces the frame exchange with a JitterBuffer, which shows frames
+	 * at a steady rate, about latency milliseconds behind.  Call before start().
+	 */
+	void enableJitterBuffer(int latency,int maxDepth) {
+		JitterBuffer jb = new JitterBuffer(MIN_PIXELS,latency,maxDepth);
+		if (frames.wide != null) jb.enableWide();
+		jb.metrics = frames.metrics;
+		frames = jb;
+	}
+
+	/**
+	 * Returns this transport's statistics
+	 */
+	TransportMetrics metrics() {
+		return frames.metrics;
+	}
+
+	/**
+	 * Returns the jitter buffer, or null if it isn't enabled.
+	 */
+	JitterBuffer jitterBuffer() {
+		return (frames instanceof JitterBuffer) ? (JitterBuffer) frames : null;
+	}
+
+	/**
+	 * Decodes pixels in the current format from a network buffer into the
+	 * back buffer, filling the high precision buffer too if it's enabled.
+	 * @param src buffer holding pixel data
+	 * @param offset position of first pixel in src
+	 * @param length number of bytes of pixel data
+	 * @param dest array to receive ARGB pixels.  Must be the back buffer.
+	 * @param pix index of first pixel in dest
+	 * Returns number of pixels copied.
+	 */
+	int decodePixels(ByteBuffer src,int offset,int length,int[] dest,int pix) {
+		int n = format.decode(src,offset,length,dest,pix);
+		long[] wide = frames.backWide();
+		if (wide != null) format.decodeWide(src,offset,dest,wide,pix,n);
+		return n;
+	}
+
+	public boolean frameReady() {
+		return frames.available();
+	}
+
+	public boolean latch() {
+		return frames.latch();
+	}
+
+	public int pixelCount() {
+		return frames.frontCount();
+	}
+
+	public int[] getFrame() {
+		return frames.front();
+	}
+
+	public void start() {
+		System.out.println("PixelTeleporter thread starting");
+		running = true;
+	}
+
+	public void stop() {
+		System.out.println("PixelTeleporter thread stopping");
+		running = false;
+	}
+}
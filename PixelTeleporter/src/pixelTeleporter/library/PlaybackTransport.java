@@ -0,0 +1,564 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ Plays back a recording made with PixelTeleporter.startRecording().
+ <p>
+ Frames are read through memory mapped windows onto the file, and shown
+ at the times they were recorded, scaled by a speed multiplier. If the
+ sketch can't keep up at high speeds, late frames are skipped rather than
+ decoded.  Playback can be paused, stepped a frame at a time, looped and
+ moved to any time or frame number.
+ <p>
+ Seeking is a binary search of the recording's seek index, which points
+ to keyframes, followed by decoding at most a second or so of frames.  If the index file is
+ missing, it's rebuilt when the recording is opened by reading the frame
+ headers, which only touches a few bytes per frame.
+ <p>
+ All the controls can be called from the drawing thread at any time
+ without waiting for the playback thread.  Seeks and steps are handed to
+ it through atomic fields and it wakes up to do them, so decoding and
+ seeking never hold a lock.  The only lock guards the playback clock, and
+ is held for a few instructions at a time.
+*/
+class PlaybackTransport extends PixelTransport implements Runnable {
+	// Bytes of the file mapped at a time
+	final static int WINDOW_SIZE = 64 << 20;
+	// Largest frame we'll try to decode. Anything bigger is garbage.
+	final static int MAX_FRAME_PIXELS = 1 << 20;
+
+	FileChannel channel;
+	Thread thread;
+
+	// the recording
+	long end;                       // file offset of end of data
+	int frameCount;
+	long duration;                  // timestamp of the last frame, us
+	long[] indexStamp;              // seek index: timestamp,
+	long[] indexOffset;             // file offset,
+	int[] indexFrame;               // and number of frame
+	int indexCount;
+
+	// mapped window onto the file
+	MappedByteBuffer window;
+	long windowStart;
+	long windowEnd;
+
+	// no pending seek
+	final static long NO_SEEK = -1;
+
+	// playback position.  Playback thread only.
+	long nextOffset;                // next frame to show. end == none
+	int nextFrame;
+
+	// what's showing, for the drawing thread
+	volatile int shownFrame = -1;   // last frame shown
+	volatile long shownStamp;
+
+	// controls, set by the drawing thread
+	volatile boolean looping;
+	AtomicLong seek = new AtomicLong(NO_SEEK);  // pending seek: time in us, or -2 - frame number
+	AtomicInteger step = new AtomicInteger();   // pending frame steps
+
+	// playback clock, guarded by this object's monitor
+	volatile boolean paused;
+	volatile float speed = 1;
+	long clockBase;                 // recording time, in us, at wallBase
+	long wallBase;                  // System.nanoTime() when the clock was set
+
+	// last frame decoded, as RGB.  Playback thread only.
+	byte[] current = new byte[0];
+	ByteBuffer currentBuffer = ByteBuffer.wrap(current);
+	int currentCount;               // pixels in current. 0 == no keyframe yet
+	byte[] input = new byte[0];     // compressed data
+	byte[] delta = new byte[0];
+	Inflater inflater = new Inflater();
+
+	PlaybackTransport(String filename) throws IOException {
+		super();
+		channel = FileChannel.open(Paths.get(filename),StandardOpenOption.READ);
+
+		ByteBuffer header = ByteBuffer.allocate(FrameRecorder.HEADER_SIZE);
+		channel.read(header,0);
+		if ((header.getInt(0) != FrameRecorder.MAGIC) || (header.getInt(4) > FrameRecorder.VERSION)) {
+			channel.close();
+			throw new IOException(filename + " is not a PixelTeleporter recording");
+		}
+		end = Math.min(header.getLong(FrameRecorder.END_OFFSET),channel.size());
+		frameCount = header.getInt(FrameRecorder.COUNT_OFFSET);
+
+		if (!loadIndex(Paths.get(FrameRecorder.indexName(filename)))) buildIndex();
+		duration = findLastStamp();
+		nextOffset = FrameRecorder.HEADER_SIZE;
+		nextFrame = 0;
+	}
+
+	/**
+	 * Reads the seek index file.  Returns false if there isn't a usable one.
+	 */
+	boolean loadIndex(Path path) {
+		int n;
+
+		try {
+			if (!Files.exists(path)) return false;
+			byte[] data = Files.readAllBytes(path);
+			ByteBuffer b = ByteBuffer.wrap(data);
+
+			n = data.length / FrameRecorder.INDEX_ENTRY_SIZE;
+			allocateIndex(n);
+			for (int i = 0; i < n; i++) {
+				indexStamp[i] = b.getLong();
+				indexOffset[i] = b.getLong();
+				indexFrame[i] = b.getInt();
+				// ignore entries past the end of a recording cut short
+				if (indexOffset[i] >= end) break;
+				indexCount++;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return (indexCount > 0) || (end <= FrameRecorder.HEADER_SIZE);
+	}
+
+	/**
+	 * Builds the seek index by walking the frame headers.
+	 */
+	void buildIndex() throws IOException {
+		long off,stamp,next;
+		int frame;
+
+		allocateIndex(64);
+		next = 0;
+		frame = 0;
+		for (off = FrameRecorder.HEADER_SIZE; off < end; off += length(off)) {
+			stamp = stamp(off);
+			if ((stamp >= next) && ((flags(off) & FrameRecorder.FLAG_DELTA) == 0)) {
+				if (indexCount == indexStamp.length) allocateIndex(indexCount * 2);
+				indexStamp[indexCount] = stamp;
+				indexOffset[indexCount] = off;
+				indexFrame[indexCount] = frame;
+				indexCount++;
+				next = stamp + FrameRecorder.INDEX_INTERVAL;
+			}
+			frame++;
+		}
+		frameCount = frame;
+	}
+
+	void allocateIndex(int n) {
+		indexStamp = (indexStamp == null) ? new long[n] : Arrays.copyOf(indexStamp,n);
+		indexOffset = (indexOffset == null) ? new long[n] : Arrays.copyOf(indexOffset,n);
+		indexFrame = (indexFrame == null) ? new int[n] : Arrays.copyOf(indexFrame,n);
+	}
+
+	/**
+	 * Returns the timestamp of the last frame, walking from the last index entry
+	 */
+	long findLastStamp() throws IOException {
+		long off,last;
+
+		if (indexCount == 0) return 0;
+		off = indexOffset[indexCount - 1];
+		last = 0;
+		for (; off < end; off += length(off)) {
+			last = stamp(off);
+		}
+		return last;
+	}
+
+	/**
+	 * Makes sure length bytes at file offset off are in the mapped window,
+	 * and returns the position of off in the window.  A record that runs
+	 * past the end of the recording is damaged.
+	 */
+	int map(long off,int length) throws IOException {
+		if ((off < FrameRecorder.HEADER_SIZE) || (off + length > end)) throw new IOException("Damaged recording");
+		if ((off < windowStart) || (off + length > windowEnd)) {
+			long size = Math.min(Math.max(WINDOW_SIZE,length),end - off);
+			window = channel.map(FileChannel.MapMode.READ_ONLY,off,size);
+			windowStart = off;
+			windowEnd = off + size;
+		}
+		return (int) (off - windowStart);
+	}
+
+	/**
+	 * Returns the length of the frame record at file offset off
+	 */
+	int length(long off) throws IOException {
+		int pos = map(off,FrameRecorder.RECORD_HEADER_SIZE);
+		int len = window.getInt(pos);
+		if (len < FrameRecorder.RECORD_HEADER_SIZE) throw new IOException("Damaged recording");
+		return len;
+	}
+
+	/**
+	 * Returns the timestamp of the frame at file offset off
+	 */
+	long stamp(long off) throws IOException {
+		int pos = map(off,FrameRecorder.RECORD_HEADER_SIZE);
+		return window.getLong(pos + 4);
+	}
+
+	/**
+	 * Returns the flags of the frame at file offset off
+	 */
+	int flags(long off) throws IOException {
+		int pos = map(off,FrameRecorder.RECORD_HEADER_SIZE);
+		return window.getInt(pos + 16);
+	}
+
+	/**
+	 * Returns the index entry at or before the specified time or frame
+	 */
+	int findEntry(long stamp,int frame) {
+		int lo = 0,hi = indexCount - 1,mid;
+
+		while (lo < hi) {
+			mid = (lo + hi + 1) >>> 1;
+			if ((frame >= 0) ? (indexFrame[mid] <= frame) : (indexStamp[mid] <= stamp)) {
+				lo = mid;
+			}
+			else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Moves to the last frame at or before the specified time, or to the
+	 * specified frame if frame isn't -1, and shows it.
+	 */
+	void moveTo(long stamp,int frame) throws IOException {
+		int i;
+		long off;
+
+		if (indexCount == 0) return;
+		frame = Math.min(frame,frameCount - 1);
+		i = findEntry(stamp,frame);
+		nextOffset = indexOffset[i];
+		nextFrame = indexFrame[i];
+		while (true) {
+			off = nextOffset + length(nextOffset);
+			if ((off >= end) || ((frame >= 0) ? (nextFrame >= frame) : (stamp(off) > stamp))) break;
+			skip();
+		}
+		show();
+	}
+
+	/**
+	 * Decodes the next frame into current and moves past it.  Deltas are
+	 * added to the frame before.  Returns false if the frame can't be
+	 * decoded -- it's damaged, or it's a delta and we don't have the frame
+	 * it's based on.  A frame that fails leaves no frame for the next delta.
+	 */
+	boolean decode() throws IOException {
+		int pos,len,count,flags,size,data,have;
+		byte[] dest;
+
+		len = length(nextOffset);
+		pos = map(nextOffset,len);
+		count = window.getInt(pos + 12);
+		flags = window.getInt(pos + 16);
+		data = len - FrameRecorder.RECORD_HEADER_SIZE;
+		size = 3 * count;
+		nextOffset += len;
+		nextFrame++;
+
+		have = currentCount;
+		currentCount = 0;               // until this frame decodes
+		if ((count <= 0) || (count > MAX_FRAME_PIXELS)) return false;
+		if ((flags & FrameRecorder.FLAG_DELTA) != 0) {
+			if (count != have) return false;
+		}
+		else {
+			if (current.length < size) {
+				current = new byte[size];
+				delta = new byte[size];
+				currentBuffer = ByteBuffer.wrap(current);
+			}
+		}
+		dest = ((flags & FrameRecorder.FLAG_DELTA) != 0) ? delta : current;
+
+		// raw or deflated data, into dest
+		window.position(pos + FrameRecorder.RECORD_HEADER_SIZE);
+		if ((flags & FrameRecorder.FLAG_DEFLATE) == 0) {
+			if (data < size) return false;
+			window.get(dest,0,size);
+		}
+		else {
+			if (input.length < data) input = new byte[data];
+			window.get(input,0,data);
+			inflater.reset();
+			inflater.setInput(input,0,data);
+			try {
+				if (inflater.inflate(dest,0,size) != size) return false;
+			} catch (DataFormatException e) {
+				return false;
+			}
+		}
+
+		if (dest == delta) {
+			for (int i = 0; i < size; i++) {
+				current[i] += delta[i];
+			}
+		}
+		currentCount = count;
+		return true;
+	}
+
+	/**
+	 * Decodes the next frame, publishes it and moves past it
+	 */
+	void show() throws IOException {
+		long t = System.nanoTime();
+		long off = nextOffset;
+
+		shownStamp = stamp(off);
+		shownFrame = nextFrame;
+		if (decode()) {
+			int n = decodePixels(currentBuffer,0,3 * currentCount,frames.back(currentCount),0);
+			frames.publish(n);
+			frames.metrics.received((int) (nextOffset - off),System.nanoTime() - t);
+		}
+		lastActivity = millis();
+	}
+
+	/**
+	 * Moves past the next frame without showing it.  It only has to be
+	 * decoded if the frame after it is a delta.
+	 */
+	void skip() throws IOException {
+		long off = nextOffset + length(nextOffset);
+
+		if ((off < end) && ((flags(off) & FrameRecorder.FLAG_DELTA) != 0)) {
+			decode();
+		}
+		else {
+			nextOffset = off;
+			nextFrame++;
+		}
+	}
+
+	/**
+	 * Sets the playback clock to the specified recording time, as of now
+	 */
+	synchronized void setClock(long stamp) {
+		clockBase = stamp;
+		wallBase = System.nanoTime();
+	}
+
+	synchronized long clock() {
+		if (paused) return clockBase;
+		return clockBase + (long) ((System.nanoTime() - wallBase) / 1000 * (double) speed);
+	}
+
+	public void start() {
+		super.start();
+		thread = new Thread(this,"PixelTeleporter playback");
+		thread.start();
+	}
+
+	public void stop() {
+		super.stop();
+		wake();
+		try {
+			if (thread != null) thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try { channel.close(); } catch (IOException e) { ; }
+			if ((thread == null) || !thread.isAlive()) inflater.end();
+		}
+	}
+
+	/**
+	 * Frames come from the recording's header, so the format can't be changed.
+	 */
+	public void setPixelFormat(PixelFormat format) {
+		;
+	}
+
+	/**
+	 * Recordings are always connected
+	 */
+	public boolean isConnected() {
+		return true;
+	}
+
+	/**
+	 * Counts off a step in the specified direction, unless a seek has
+	 * cancelled the steps in the meantime.
+	 */
+	void stepDone(int direction) {
+		int n;
+
+		do {
+			n = step.get();
+			if (Integer.signum(n) != direction) return;
+		} while (!step.compareAndSet(n,n - direction));
+	}
+
+	/**
+	 * Wakes the playback thread to look at its controls
+	 */
+	void wake() {
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	public void run() {
+		long now,wait,target;
+		int n;
+
+		try {
+			setClock(0);
+			while (running) {
+				target = seek.getAndSet(NO_SEEK);
+				if (target != NO_SEEK) {
+					if (target >= 0) {
+						moveTo(target,-1);
+					}
+					else {
+						moveTo(0,(int) (-2 - target));
+					}
+					setClock(shownStamp);
+				}
+				else if ((n = step.get()) != 0) {
+					if ((n > 0) && (nextOffset < end)) {
+						show();
+					}
+					else if ((n < 0) && (shownFrame > 0)) {
+						moveTo(0,shownFrame - 1);
+					}
+					stepDone(Integer.signum(n));
+					setClock(shownStamp);
+				}
+				else if (nextOffset >= end) {
+					if (looping && (frameCount > 0)) {
+						moveTo(0,0);
+						setClock(0);
+					}
+					else {
+						LockSupport.park(this);
+					}
+				}
+				else if (paused) {
+					LockSupport.park(this);
+				}
+				else {
+					// show the newest frame that's due, or wait until one is
+					now = clock();
+					if (stamp(nextOffset) <= now) {
+						while ((nextOffset + length(nextOffset) < end) &&
+						       (stamp(nextOffset + length(nextOffset)) <= now)) {
+							skip();
+						}
+						show();
+					}
+					else {
+						wait = (long) ((stamp(nextOffset) - now) / speed);
+						LockSupport.parkNanos(this,Math.max(1000,wait * 1000));
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void pause() {
+		synchronized (this) {
+			clockBase = clock();
+			paused = true;
+		}
+		wake();
+	}
+
+	void play() {
+		synchronized (this) {
+			if (!paused) return;
+			paused = false;
+			wallBase = System.nanoTime();
+		}
+		wake();
+	}
+
+	void setSpeed(float multiplier) {
+		if (multiplier <= 0) return;
+		synchronized (this) {
+			setClock(clock());
+			speed = multiplier;
+		}
+		wake();
+	}
+
+	void setLooping(boolean loop) {
+		looping = loop;
+		wake();
+	}
+
+	/**
+	 * Moves to the specified time, in seconds from the start of the recording
+	 */
+	void seek(float seconds) {
+		step.set(0);
+		seek.set(Math.max(0,(long) (seconds * 1e6)));
+		wake();
+	}
+
+	void seekFrame(int frame) {
+		step.set(0);
+		seek.set(-2 - Math.max(0,frame));
+		wake();
+	}
+
+	/**
+	 * Pauses, and moves the specified number of frames forward or back
+	 */
+	void step(int frames) {
+		if (!paused) pause();
+		step.addAndGet(frames);
+		wake();
+	}
+
+	/**
+	 * Current playback position, in seconds
+	 */
+	float position() {
+		return shownStamp / 1e6f;
+	}
+
+	/**
+	 * Length of the recording, in seconds
+	 */
+	float duration() {
+		return duration / 1e6f;
+	}
+
+	/**
+	 * Number of the frame now showing, or -1 if none has been shown yet
+	 */
+	int frame() {
+		return shownFrame;
+	}
+
+	int frameCount() {
+		return frameCount;
+	}
+}
@@ -0,0 +1,255 @@
+package pixelTeleporter.library;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+/**
+ sACN (ANSI E1.31) receiver transport.
+ <p>
+ Joins the multicast group of every mapped universe on a single channel,
+ and decodes their data into the frame buffer (see UniverseTransport).
+ Unicast sACN to this machine works too.
+ <p>
+ When several sources send the same universe, the one with the highest
+ priority wins.  Ties go to the source already in control.  A source that
+ goes quiet for 2.5 seconds, or says it's terminating its stream, loses
+ control, and the next source to send takes over.  Packets arriving out of
+ order from the controlling source are discarded, using the E1.31 sequence
+ number rules.
+ <p>
+ If the console synchronizes its universes, data packets name the sync
+ universe, and we join its multicast group too.  Frames are then committed
+ only by sync packets for that universe.  Data packets with no sync
+ universe are shown as they arrive.
+*/
+class SacnTransport extends UniverseTransport {
+	final static int SACN_PORT = 5568;
+
+	// root layer
+	final static int VECTOR_ROOT_DATA = 0x00000004;
+	final static int VECTOR_ROOT_EXTENDED = 0x00000008;
+	// framing layer
+	final static int VECTOR_FRAME_DATA = 0x00000002;
+	final static int VECTOR_FRAME_SYNC = 0x00000001;
+	final static int OPTION_TERMINATED = 0x40;
+	// DMP layer
+	final static int DATA_OFFSET = 126;
+	final static int SYNC_PACKET_SIZE = 49;
+
+	// Time, in milliseconds, without data before a source loses control
+	// of a universe
+	final static int SOURCE_TIMEOUT = 2500;
+
+	NetworkInterface netif;
+	boolean warnedJoin;
+
+	// Receiver thread only, once started
+	int syncUniverse;               // sync address from data packets. 0 == none
+	MembershipKey syncGroup;        // membership of the sync universe's group, if we had to join it
+
+	// Controlling source for each mapped universe, indexed like the
+	// UniverseMap. Receiver thread only, once started.
+	long[] cidHigh;                 // source CID, first 8 bytes
+	long[] cidLow;                  // source CID, last 8 bytes
+	int[] priority;                 // source priority
+	int[] lastSeen;                 // time of source's last packet. 0 == no source
+	int[] lastSeq;                  // source's last sequence number
+
+	SacnTransport(String interfaceName) {
+		super(SACN_PORT);
+
+		cidHigh = new long[16];
+		cidLow = new long[16];
+		priority = new int[16];
+		lastSeen = new int[16];
+		lastSeq = new int[16];
+
+		try {
+			netif = (interfaceName != null) ? NetworkInterface.getByName(interfaceName)
+					                        : defaultInterface();
+			if (netif == null) {
+				System.out.println("PixelTeleporter: No network interface for sACN multicast");
+			}
+			else {
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,netif);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * E1.31 multicast is IPv4 only.
+	 */
+	DatagramChannel openChannel() throws IOException {
+		return DatagramChannel.open(StandardProtocolFamily.INET);
+	}
+
+	/**
+	 * Returns the first active, multicast capable interface with an
+	 * IPv4 address, preferring real interfaces to loopback.
+	 */
+	static NetworkInterface defaultInterface() throws IOException {
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+
+		while (e.hasMoreElements()) {
+			NetworkInterface ni = e.nextElement();
+			if (!ni.isUp() || !ni.supportsMulticast()) continue;
+
+			Enumeration<InetAddress> addrs = ni.getInetAddresses();
+			while (addrs.hasMoreElements()) {
+				if (addrs.nextElement() instanceof Inet4Address) {
+					if (!ni.isLoopback()) return ni;
+					loopback = ni;
+				}
+			}
+		}
+		return loopback;
+	}
+
+	/**
+	 * Returns the multicast group for a universe, 239.255.hi.lo
+	 */
+	static InetAddress universeGroup(int u) throws IOException {
+		return InetAddress.getByAddress(new byte[] {
+			(byte) 239, (byte) 255, (byte) (u >> 8), (byte) u });
+	}
+
+	/**
+	 * Maps the universe and joins its multicast group.
+	 */
+	void mapUniverse(int u,int first,int pixels) {
+		int n;
+
+		if ((u < 1) || (u > 63999)) return;
+		super.mapUniverse(u,first,pixels);
+
+		n = universes.count;
+		if (n > priority.length) {
+			n = Math.max(n,priority.length * 2);
+			cidHigh = Arrays.copyOf(cidHigh,n);
+			cidLow = Arrays.copyOf(cidLow,n);
+			priority = Arrays.copyOf(priority,n);
+			lastSeen = Arrays.copyOf(lastSeen,n);
+			lastSeq = Arrays.copyOf(lastSeq,n);
+		}
+
+		join(u);
+	}
+
+	/**
+	 * Joins a universe's multicast group.  Returns the membership, or null
+	 * if it can't be joined.
+	 */
+	MembershipKey join(int u) {
+		if (netif == null) return null;
+		try {
+			return channel.join(universeGroup(u),netif);
+		} catch (IOException e) {
+			// Most likely the OS limit on group memberships per socket.
+			// On Linux, raise net.ipv4.igmp_max_memberships.
+			if (!warnedJoin) {
+				System.out.println("PixelTeleporter: Unable to join sACN multicast group for universe "
+						+ u + ": " + e.getMessage());
+				warnedJoin = true;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Switches to the sync universe named in a data packet, joining its
+	 * multicast group if it isn't one of the mapped universes.
+	 */
+	void setSyncUniverse(int u) {
+		if (syncGroup != null) {
+			syncGroup.drop();
+			syncGroup = null;
+		}
+		syncUniverse = u;
+		if ((u >= 1) && (u <= 63999) && (universes.lookup(u) < 0)) syncGroup = join(u);
+	}
+
+	void receive(int length) {
+		int vector;
+
+		// root layer: preamble size, postamble size, "ASC-E1.17" packet id
+		if ((length < 44) || (buffer.getInt(0) != 0x00100000)
+			|| (buffer.getLong(4) != 0x4153432D45312E31L) || (buffer.getInt(12) != 0x37000000)) return;
+
+		vector = buffer.getInt(18);
+		if ((vector == VECTOR_ROOT_DATA) && (buffer.getInt(40) == VECTOR_FRAME_DATA)) {
+			receiveData(length);
+		}
+		else if ((vector == VECTOR_ROOT_EXTENDED) && (buffer.getInt(40) == VECTOR_FRAME_SYNC)
+				 && (length >= SYNC_PACKET_SIZE)) {
+			// only the sync universe our data is waiting for
+			if ((syncUniverse != 0) && ((buffer.getShort(45) & 0xFFFF) == syncUniverse)) receiveSync();
+		}
+	}
+
+	/**
+	 * Handles a data packet: applies source priority and sequence checks,
+	 * then decodes the universe.
+	 */
+	void receiveData(int length) {
+		int u,i,seq,prio,now,bytes,sync;
+		long hi,lo;
+
+		if (length < DATA_OFFSET) return;
+
+		u = buffer.getShort(113) & 0xFFFF;
+		i = universes.lookup(u);
+		if (i < 0) return;
+
+		// only null start code (dimmer/pixel) data
+		if (buffer.get(125) != 0) return;
+
+		hi = buffer.getLong(22);
+		lo = buffer.getLong(30);
+		prio = buffer.get(108) & 0xFF;
+		seq = buffer.get(111) & 0xFF;
+		now = millis();
+
+		if ((lastSeen[i] != 0) && (hi == cidHigh[i]) && (lo == cidLow[i])) {
+			// controlling source: discard anything out of order
+			int diff = (byte) (seq - lastSeq[i]);
+			if ((diff <= 0) && (diff > -20)) return;
+		}
+		else if ((lastSeen[i] != 0) && ((now - lastSeen[i]) <= SOURCE_TIMEOUT)
+				 && (prio <= priority[i])) {
+			// another source is in control
+			return;
+		}
+		else {
+			cidHigh[i] = hi;
+			cidLow[i] = lo;
+		}
+
+		if ((buffer.get(112) & OPTION_TERMINATED) != 0) {
+			lastSeen[i] = 0;
+			return;
+		}
+
+		priority[i] = prio;
+		lastSeq[i] = seq;
+		lastSeen[i] = (now != 0) ? now : 1;
+
+		sync = buffer.getShort(109) & 0xFFFF;
+		if (sync != syncUniverse) setSyncUniverse(sync);
+		if (sync == 0) syncMode = false;
+
+		// property value count includes the start code
+		bytes = (buffer.getShort(123) & 0xFFFF) - 1;
+		receiveUniverse(i,DATA_OFFSET,Math.min(bytes,length - DATA_OFFSET));
+	}
+}
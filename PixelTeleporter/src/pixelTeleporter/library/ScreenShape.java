@@ -1,5 +1,7 @@
 package pixelTeleporter.library;
 
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
 import processing.core.PShape;
 
 /**
@@ -10,15 +12,30 @@ and index is the LED's index in the incoming RGB pixel data stream.
 <p>
 To create a ScreenShape for your sketch, use the PixelTeleporter class 
 method ScreenShapeFactory().
+<p>
+Setting a PShape's fill color is expensive, so it's only done when the
+LED's color has changed.  If several ScreenShapes share a PShape, the fill
+is set every time they're drawn.
  */
 public class ScreenShape extends ScreenLED {
 	PShape ledShape;
 	int opacity;
+	int fill;                // color last set on ledShape
+	boolean filled = false;  // true if fill is valid
+	boolean shared = false;  // true if another ScreenShape uses ledShape
 
 	public ScreenShape(PixelTeleporter parent,PShape s,int opacity) {
 		super(parent);
 		ledShape = s;
 		this.opacity = opacity;
+
+		WeakHashMap<PShape,WeakReference<ScreenShape>> owners = parent.shapeOwners;
+		WeakReference<ScreenShape> ref = owners.put(s,new WeakReference<ScreenShape>(this));
+		ScreenShape other = (ref == null) ? null : ref.get();
+		if (other != null) {
+			other.shared = true;
+			shared = true;
+		}
 	}
 
 	public ScreenShape(PixelTeleporter parent,PShape s) {
@@ -34,28 +51,34 @@ public class ScreenShape extends ScreenLED {
 		this.opacity = o;
 	}
 
-	public void draw2D() {
-		int pix;   
+	/**
+	 * Sets the shape's fill to the current color of its pixel, unless
+	 * that's what it already is.
+	 */
+	void updateFill() {
+		int col = parent.app.color(parent.pixelBuffer[index],opacity);
+		if (filled && !shared && (col == fill)) return;
 
+		ledShape.setFill(col);
+		fill = col;
+		filled = true;
+	}
+
+	public void draw2D() {
 		parent.app.pushMatrix();
 		parent.app.translate(x,y);
-		
-		pix = parent.pixelBuffer[index];
 
-		ledShape.setFill(parent.app.color(pix,opacity));
+		updateFill();
 		parent.app.shape(ledShape);
 
 		parent.app.popMatrix();    
 	} 		
 
 	public void draw() {
-		int pix;
 		parent.app.pushMatrix();    
 		parent.app.translate(x,y,z);
 
-		pix = parent.pixelBuffer[index];
-
-		ledShape.setFill(parent.app.color(pix,opacity));
+		updateFill();
 		parent.app.shape(ledShape);
 
 		parent.app.popMatrix();
@@ -0,0 +1,445 @@
+package pixelTeleporter.library;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ Stand-in for the pbxTeleporter bridge, for testing and benchmarking without
+ a Pixelblaze.  Speaks the bridge's UDP protocol -- classic (0xF0) and
+ sequenced (0xF1) frame requests, and subscriptions (0xF2/0xF3) -- and answers
+ with synthetic frames of any size, generated at a set frame rate.  Large
+ frames are sent in chunks, just like the bridge does it.  It doesn't compress
+ frames, so clients that ask for compression get plain ones.
+ <p>
+ To make the network look worse than loopback, replies can be delayed by a
+ fixed latency, and datagrams dropped at random.
+ <p>
+ Unlike the bridge, which always sends to its configured client port,
+ replies go to the port the request came from, so many clients can share a
+ machine.  Runs on its own thread.  Can be run from the command line:
+ <pre>
+ java -cp PixelTeleporter.jar pixelTeleporter.library.TestServer [port] [pixels] [fps] [loss] [latency]
+ </pre>
+*/
+public class TestServer implements Runnable {
+	/**
+	 * Synthetic frame contents:
+	 * <li><strong>RAINBOW</strong> - a moving rainbow across the whole display.</li>
+	 * <li><strong>SOLID</strong> - every pixel the same slowly changing color.</li>
+	 * <li><strong>NOISE</strong> - random pixels, different every frame. Worst case for compression.</li>
+	 */
+	public enum Pattern {
+		RAINBOW,
+		SOLID,
+		NOISE
+	}
+
+	final static int DEFAULT_PORT = 8081;
+	final static int MAX_REQUEST = 64;
+
+	// protocol constants, from the bridge's udpServer.h
+	final static int CMD_REQUEST_FRAME = 0xF0;
+	final static int CMD_REQUEST_FRAME_SEQ = 0xF1;
+	final static int CMD_SUBSCRIBE = 0xF2;
+	final static int CMD_UNSUBSCRIBE = 0xF3;
+	final static int SEQ_HEADER_SIZE = 4;
+	final static int FLAG_CHUNKED = 0x01;
+	final static int CHUNK_HEADER_SIZE = 16;
+	final static int CHUNK_PIXELS = 480;
+	final static int SINGLE_FRAME_BYTES = 4096 * 3;
+	final static int MAX_SUBSCRIBERS = 8;
+
+	// a reply waiting out the simulated latency, with a copy of its frame
+	static class Reply {
+		long due;
+		SocketAddress to;
+		int cmd;
+		int seq;
+		byte[] pixels;
+		int length;
+	}
+
+	static class Subscriber {
+		SocketAddress addr;
+		long expires;
+	}
+
+	int port;
+	Thread thread;
+	volatile boolean running;
+	DatagramChannel channel;
+	Selector selector;
+	ByteBuffer in;
+	ByteBuffer out;
+	Random random = new Random();
+	int[] palette = new int[256];
+
+	// settings. Can be changed while running.
+	volatile int pixels;
+	volatile Pattern pattern = Pattern.RAINBOW;
+	volatile float frameRate = 60;
+	volatile float lossRate = 0;
+	volatile int latency = 0;
+
+	// server thread only
+	byte[] frame = new byte[0];
+	int frameLength;
+	long nextFrame;
+	ArrayDeque<Reply> pending = new ArrayDeque<Reply>();
+	ArrayDeque<Reply> spare = new ArrayDeque<Reply>();
+	ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>();
+
+	// statistics
+	volatile int frameNumber;
+	volatile int requests;
+	volatile int sent;
+	volatile int dropped;
+
+	/**
+	 * Creates a server that listens on the specified UDP port, serving
+	 * frames of the specified number of pixels.  Call start() to run it.
+	 */
+	public TestServer(int port,int pixels) {
+		this.port = port;
+		this.pixels = Math.max(1,pixels);
+		for (int i = 0; i < 256; i++) {
+			palette[i] = Color.HSBtoRGB(i / 256f,1f,1f) & 0xFFFFFF;
+		}
+	}
+
+	/**
+	 * Sets the number of pixels in each frame
+	 */
+	public void setPixelCount(int n) {
+		pixels = Math.max(1,n);
+	}
+
+	/**
+	 * Sets the pattern shown in the synthetic frames
+	 */
+	public void setPattern(Pattern p) {
+		pattern = p;
+	}
+
+	/**
+	 * Sets how many new frames are generated per second.  Requests are
+	 * answered with the newest frame, and subscribers get every frame.
+	 */
+	public void setFrameRate(float fps) {
+		frameRate = Math.max(0.1f,fps);
+	}
+
+	/**
+	 * Sets the fraction (0-1) of outgoing datagrams to drop at random
+	 */
+	public void setLossRate(float loss) {
+		lossRate = Math.max(0,Math.min(1,loss));
+	}
+
+	/**
+	 * Delays every reply and pushed frame by the specified number of milliseconds
+	 */
+	public void setLatency(int ms) {
+		latency = Math.max(0,ms);
+	}
+
+	/**
+	 * Number of frames generated so far
+	 */
+	public int getFrameCount() {
+		return frameNumber;
+	}
+
+	/**
+	 * Number of requests received so far, including subscription renewals
+	 */
+	public int getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Number of datagrams sent so far
+	 */
+	public int getSentCount() {
+		return sent;
+	}
+
+	/**
+	 * Number of datagrams dropped on purpose so far
+	 */
+	public int getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Opens the port and starts serving frames
+	 */
+	public void start() throws IOException {
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR,true);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF,1 << 20);
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector,SelectionKey.OP_READ);
+
+		in = ByteBuffer.allocateDirect(MAX_REQUEST);
+		out = ByteBuffer.allocateDirect(CHUNK_HEADER_SIZE + SINGLE_FRAME_BYTES);
+
+		running = true;
+		thread = new Thread(this,"PixelTeleporter TestServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the server and closes its port
+	 */
+	public void stop() {
+		running = false;
+		if (thread == null) return;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+			selector.close();
+			channel.close();
+		} catch (Exception e) {
+			;
+		}
+		thread = null;
+	}
+
+	public void run() {
+		long now,wait;
+
+		nextFrame = System.nanoTime();
+		while (running) {
+			try {
+				now = System.nanoTime();
+				if (now - nextFrame >= 0) {
+					newFrame();
+					long period = (long) (1e9 / frameRate);
+					nextFrame += period;
+					if (now - nextFrame > period) nextFrame = now + period;
+				}
+				sendDue(now);
+
+				wait = nextFrame - now;
+				if (!pending.isEmpty()) wait = Math.min(wait,pending.peek().due - now);
+				if (wait > 0) selector.select(Math.max(1,wait / 1000000L));
+				selector.selectedKeys().clear();
+
+				SocketAddress from;
+				in.clear();
+				while ((from = channel.receive(in)) != null) {
+					in.flip();
+					if (in.limit() > 0) request(from);
+					in.clear();
+				}
+			} catch (IOException e) {
+				if (running) e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Generates the next frame, and pushes it to subscribers
+	 */
+	void newFrame() {
+		int n = pixels;
+		int f = ++frameNumber;
+
+		frameLength = n * 3;
+		if (frame.length < frameLength) frame = new byte[frameLength];
+
+		switch (pattern) {
+		case RAINBOW:
+			for (int i = 0; i < n; i++) {
+				putPixel(i,palette[((i << 8) / n + f * 2) & 0xFF]);
+			}
+			break;
+		case SOLID:
+			int col = palette[(f / 2) & 0xFF];
+			for (int i = 0; i < n; i++) {
+				putPixel(i,col);
+			}
+			break;
+		case NOISE:
+			random.nextBytes(frame);
+			break;
+		}
+
+		long now = System.nanoTime();
+		for (int i = subscribers.size() - 1; i >= 0; i--) {
+			Subscriber s = subscribers.get(i);
+			if (now - s.expires > 0) {
+				subscribers.remove(i);
+			}
+			else {
+				reply(s.addr,CMD_SUBSCRIBE,f & 0xFFFF);
+			}
+		}
+	}
+
+	void putPixel(int i,int rgb) {
+		frame[i * 3] = (byte) (rgb >> 16);
+		frame[i * 3 + 1] = (byte) (rgb >> 8);
+		frame[i * 3 + 2] = (byte) rgb;
+	}
+
+	/**
+	 * Handles a request from a client, which is in the input buffer
+	 */
+	void request(SocketAddress from) {
+		int cmd = in.get(0) & 0xFF;
+		int arg = (in.limit() >= 3) ? in.getShort(1) & 0xFFFF : 0;
+
+		requests++;
+		switch (cmd) {
+		case CMD_REQUEST_FRAME_SEQ:
+			if (in.limit() >= 3) reply(from,cmd,arg);
+			break;
+		case CMD_SUBSCRIBE:
+			if (in.limit() >= 3) subscribe(from,arg);
+			break;
+		case CMD_UNSUBSCRIBE:
+			for (int i = subscribers.size() - 1; i >= 0; i--) {
+				if (subscribers.get(i).addr.equals(from)) subscribers.remove(i);
+			}
+			break;
+		default:
+			reply(from,CMD_REQUEST_FRAME,0);
+			break;
+		}
+	}
+
+	void subscribe(SocketAddress from,int lease) {
+		long expires = System.nanoTime() + lease * 1000000L;
+
+		for (Subscriber s : subscribers) {
+			if (s.addr.equals(from)) {
+				s.expires = expires;
+				return;
+			}
+		}
+		if (subscribers.size() >= MAX_SUBSCRIBERS) return;
+		Subscriber s = new Subscriber();
+		s.addr = from;
+		s.expires = expires;
+		subscribers.add(s);
+	}
+
+	/**
+	 * Sends the current frame to a client now, or queues a copy to be sent
+	 * after the simulated latency.
+	 */
+	void reply(SocketAddress to,int cmd,int seq) {
+		if (latency == 0) {
+			sendFrame(to,cmd,seq,frame,frameLength);
+			return;
+		}
+
+		Reply r = spare.isEmpty() ? new Reply() : spare.poll();
+		if ((r.pixels == null) || (r.pixels.length < frameLength)) r.pixels = new byte[frameLength];
+		System.arraycopy(frame,0,r.pixels,0,frameLength);
+		r.length = frameLength;
+		r.to = to;
+		r.cmd = cmd;
+		r.seq = seq;
+		r.due = System.nanoTime() + latency * 1000000L;
+		pending.add(r);
+	}
+
+	/**
+	 * Sends queued replies whose time has come
+	 */
+	void sendDue(long now) {
+		while (!pending.isEmpty() && (now - pending.peek().due >= 0)) {
+			Reply r = pending.poll();
+			sendFrame(r.to,r.cmd,r.seq,r.pixels,r.length);
+			r.to = null;
+			spare.add(r);
+		}
+	}
+
+	/**
+	 * Sends a frame the way the bridge does: raw RGB for classic requests,
+	 * and otherwise with a sequence header, chunked if it's large.
+	 */
+	void sendFrame(SocketAddress to,int cmd,int seq,byte[] pixels,int length) {
+		if (cmd == CMD_REQUEST_FRAME) {
+			out.clear();
+			out.put(pixels,0,Math.min(length,SINGLE_FRAME_BYTES));
+			send(to);
+			return;
+		}
+
+		if (length <= SINGLE_FRAME_BYTES) {
+			out.clear();
+			out.put((byte) cmd).put((byte) 0).putShort((short) seq);
+			out.put(pixels,0,length);
+			send(to);
+			return;
+		}
+
+		int total = length / 3;
+		int count = (total + CHUNK_PIXELS - 1) / CHUNK_PIXELS;
+		for (int i = 0; i < count; i++) {
+			int offset = i * CHUNK_PIXELS;
+			int n = Math.min(CHUNK_PIXELS,total - offset);
+			out.clear();
+			out.put((byte) cmd).put((byte) FLAG_CHUNKED).putShort((short) seq);
+			out.putShort((short) i).putShort((short) count).putInt(offset).putInt(total);
+			out.put(pixels,offset * 3,n * 3);
+			send(to);
+		}
+	}
+
+	/**
+	 * Sends the output buffer, unless the simulated network loses it
+	 */
+	void send(SocketAddress to) {
+		if ((lossRate > 0) && (random.nextFloat() < lossRate)) {
+			dropped++;
+			return;
+		}
+		out.flip();
+		try {
+			channel.send(out,to);
+			sent++;
+		} catch (IOException e) {
+			// client went away. Not our problem.
+		}
+	}
+
+	/**
+	 * Runs a server from the command line until it's killed.
+	 * Arguments, all optional: port, pixels, frame rate, loss rate, latency(ms)
+	 */
+	public static void main(String[] args) throws Exception {
+		TestServer server = new TestServer((args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT,
+		                                   (args.length > 1) ? Integer.parseInt(args[1]) : 1024);
+		if (args.length > 2) server.setFrameRate(Float.parseFloat(args[2]));
+		if (args.length > 3) server.setLossRate(Float.parseFloat(args[3]));
+		if (args.length > 4) server.setLatency(Integer.parseInt(args[4]));
+		server.start();
+		System.out.println("PixelTeleporter test server on port " + server.port + ", " +
+		                   server.pixels + " pixels at " + server.frameRate + " fps");
+		while (true) {
+			Thread.sleep(5000);
+			System.out.println(server.getFrameCount() + " frames, " + server.getRequestCount() +
+			                   " requests, " + server.getSentCount() + " datagrams sent, " +
+			                   server.getDroppedCount() + " dropped");
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package pixelTeleporter.library;
+
+/**
+ Source of frames of pixel data for a PixelTeleporter.
+ <p>
+ A transport runs on its own, usually on a receiver thread, and hands
+ finished frames to the drawing thread.  Every draw(), PixelTeleporter calls
+ latch() and, if it returns true, renders the pixels from getFrame(). Then
+ it calls requestFrame() so transports that have to ask for data can do so.
+ <p>
+ The network transports built into the library all implement this
+ interface, and can be chosen with the PixelTeleporter constructors and
+ factory methods.  To feed PixelTeleporter from something else -- a file,
+ another library, a generator running in the sketch -- implement this
+ interface and pass it to PixelTeleporter(PApplet,Transport).
+ <p>
+ The methods with default implementations are optional.  A transport only
+ needs to override the ones it supports.
+*/
+public interface Transport {
+	/**
+	 * Starts the transport.  Called by PixelTeleporter.start().
+	 */
+	void start();
+
+	/**
+	 * Stops the transport and releases its resources.  Called when the
+	 * sketch shuts down.
+	 */
+	void stop();
+
+	/**
+	 * Returns true if the transport has heard from its source recently.
+	 * If false, PixelTeleporter shows its "disconnected" display.
+	 */
+	boolean isConnected();
+
+	/**
+	 * Called after each frame is drawn.  Transports that must ask their
+	 * source for each frame do it here.  Others can ignore it.
+	 */
+	void requestFrame();
+
+	/**
+	 * Returns true if a new frame is waiting to be latched.
+	 */
+	boolean frameReady();
+
+	/**
+	 * If a new frame is ready, makes it the current frame.  Called from
+	 * the drawing thread.
+	 * @return true if the current frame changed
+	 */
+	boolean latch();
+
+	/**
+	 * Returns the number of pixels in the current frame
+	 */
+	int pixelCount();
+
+	/**
+	 * Returns the current frame as ARGB pixels, without copying.  The
+	 * array may be larger than pixelCount().  It belongs to the transport,
+	 * and stays valid and unchanged until the next call to latch().
+	 */
+	int[] getFrame();
+
+	/**
+	 * Called every draw() while the sketch has paused reading, in place of
+	 * latch().  A transport that times out when it stops hearing from its
+	 * source should count this as activity, or resuming would start with
+	 * a disconnect flash.
+	 */
+	default void keepAlive() {
+		;
+	}
+
+	/**
+	 * Sets the layout of incoming pixel data.  Called before start().
+	 * Transports whose format is fixed ignore it.
+	 */
+	default void setPixelFormat(PixelFormat format) {
+		;
+	}
+
+	/**
+	 * Asks the transport to keep a 16 bit per channel copy of each frame.
+	 * Called before start().  Transports that can't ignore it.
+	 */
+	default void enableHighPrecision() {
+		;
+	}
+
+	/**
+	 * Returns the 16 bit per channel version of the current frame, in
+	 * 0xAAAARRRRGGGGBBBB order, or null if there isn't one.  Valid until
+	 * the next call to latch(), like getFrame().
+	 */
+	default long[] getWideFrame() {
+		return null;
+	}
+}
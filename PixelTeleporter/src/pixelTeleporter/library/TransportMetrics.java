@@ -0,0 +1,212 @@
+package pixelTeleporter.library;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Connection health and throughput statistics for a transport.  Get one
+ with PixelTeleporter.getMetrics(), and read it from the sketch whenever
+ you like.
+ <p>
+ Counts are totals since the transport was created, or since reset().
+ Rates are averaged over the last second or so.  Counters are lock-free, and
+ the receiver thread never waits for a reader, so metrics are always on.
+ <p>
+ Request and round trip statistics are only kept by transports that
+ request frames -- the PixelTeleporter bridge in classic or pipelined mode.
+*/
+public class TransportMetrics {
+	// shortest time, in nanoseconds, to average rates over
+	static final long RATE_INTERVAL = 1000000000L;
+
+	LongAdder datagrams = new LongAdder();
+	LongAdder bytes = new LongAdder();
+	LongAdder decodeNanos = new LongAdder();
+	LongAdder framesReceived = new LongAdder();
+	LongAdder framesShown = new LongAdder();
+	LongAdder framesDropped = new LongAdder();
+	LongAdder requestsSent = new LongAdder();
+	LongAdder requestsLost = new LongAdder();
+	LongAdder timeouts = new LongAdder();
+	LongAdder retransmits = new LongAdder();
+	LongAdder errors = new LongAdder();
+	LongAdder underruns = new LongAdder();
+	LatencyHistogram rtt = new LatencyHistogram();
+
+	// rate calculation, guarded by this object's monitor
+	long rateTime = System.nanoTime();
+	long rateFrames;
+	long rateBytes;
+	float frameRate;
+	float byteRate;
+
+	/**
+	 * Receiver side: counts a datagram or message of the specified size, which
+	 * took the specified number of nanoseconds to decode.
+	 */
+	void received(int length,long nanos) {
+		datagrams.increment();
+		bytes.add(length);
+		decodeNanos.add(nanos);
+	}
+
+	/**
+	 * Total frames received and published by the transport
+	 */
+	public long getFramesReceived() {
+		return framesReceived.sum();
+	}
+
+	/**
+	 * Total frames shown by the sketch
+	 */
+	public long getFramesShown() {
+		return framesShown.sum();
+	}
+
+	/**
+	 * Total frames received but never shown, because a newer frame
+	 * arrived first, or the jitter buffer overflowed or skipped them.
+	 */
+	public long getFramesDropped() {
+		return framesDropped.sum();
+	}
+
+	/**
+	 * Total datagrams (or, for OPC, messages) received
+	 */
+	public long getDatagramsReceived() {
+		return datagrams.sum();
+	}
+
+	/**
+	 * Total bytes received
+	 */
+	public long getBytesReceived() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Total frame requests sent to the server
+	 */
+	public long getRequestsSent() {
+		return requestsSent.sum();
+	}
+
+	/**
+	 * Total requests that were never answered, or whose replies were
+	 * overtaken by newer ones
+	 */
+	public long getRequestsLost() {
+		return requestsLost.sum();
+	}
+
+	/**
+	 * Number of times requests went unanswered for longer than the
+	 * retransmission timeout
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * Total requests sent again after a timeout
+	 */
+	public long getRetransmits() {
+		return retransmits.sum();
+	}
+
+	/**
+	 * Total records dropped because they failed their checksum.  Only kept
+	 * by transports whose protocol has one -- the output expander.
+	 */
+	public long getChecksumErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * Number of times the jitter buffer ran dry while playing, and had to
+	 * stop and refill.  Only kept while the jitter buffer is enabled.
+	 */
+	public long getJitterBufferUnderruns() {
+		return underruns.sum();
+	}
+
+	/**
+	 * Average time the receiver spends decoding a frame, in microseconds
+	 */
+	public float getDecodeTime() {
+		long n = framesReceived.sum();
+		return (n == 0) ? 0 : decodeNanos.sum() / (n * 1000f);
+	}
+
+	/**
+	 * Round trip time from request to reply, in milliseconds, at the
+	 * specified percentile (0-100).  0 if nothing's been measured.
+	 */
+	public float getRttPercentile(double percentile) {
+		return rtt.percentile(percentile / 100) / 1000f;
+	}
+
+	/**
+	 * Frames received per second
+	 */
+	public float getFrameRate() {
+		updateRates();
+		return frameRate;
+	}
+
+	/**
+	 * Bytes received per second
+	 */
+	public float getByteRate() {
+		updateRates();
+		return byteRate;
+	}
+
+	synchronized void updateRates() {
+		long now = System.nanoTime();
+		long dt = now - rateTime;
+		if (dt < RATE_INTERVAL) return;
+
+		long f = framesReceived.sum();
+		long b = bytes.sum();
+		frameRate = (f - rateFrames) * 1e9f / dt;
+		byteRate = (b - rateBytes) * 1e9f / dt;
+		rateFrames = f;
+		rateBytes = b;
+		rateTime = now;
+	}
+
+	/**
+	 * Clears all counts and the round trip time histogram
+	 */
+	public synchronized void reset() {
+		datagrams.reset();
+		bytes.reset();
+		decodeNanos.reset();
+		framesReceived.reset();
+		framesShown.reset();
+		framesDropped.reset();
+		requestsSent.reset();
+		requestsLost.reset();
+		timeouts.reset();
+		retransmits.reset();
+		errors.reset();
+		underruns.reset();
+		rtt.reset();
+		rateFrames = 0;
+		rateBytes = 0;
+		rateTime = System.nanoTime();
+	}
+
+	/**
+	 * One line summary, handy for println()
+	 */
+	public String toString() {
+		return String.format("%.1f fps, %.1f KB/s, shown %d, dropped %d, lost %d/%d requests, %d timeouts, " +
+		                     "rtt p50 %.2f p99 %.2f ms, decode %.1f us/frame",
+		                     getFrameRate(),getByteRate() / 1024,getFramesShown(),getFramesDropped(),
+		                     getRequestsLost(),getRequestsSent(),getTimeouts(),getRttPercentile(50),getRttPercentile(99),
+		                     getDecodeTime());
+	}
+}
@@ -0,0 +1,107 @@
+package pixelTeleporter.library;
+
+import java.util.Arrays;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Maps DMX universes to blocks of pixels in the frame buffer, and keeps
+ track of which mapped universes have arrived since the last frame was
+ published.  Used by the universe-based transports (Art-Net, sACN).
+ <p>
+ Lookups are a single array access, and nothing is allocated once the
+ map is set up.  The map should be set up before the transport is started.
+*/
+class UniverseMap {
+	final static int MAX_UNIVERSES = 65536;
+
+	int[] slot;          // universe number -> index of its mapping, or -1
+	int[] universe;      // per mapping: universe number
+	int[] offset;        // per mapping: index of the universe's first pixel
+	int[] pixels;        // per mapping: number of pixels in the universe
+	long[] seen;         // per mapping: received since last reset(), one bit each
+	int count;           // number of mapped universes
+	int received;        // number of mapped universes received since last reset()
+	int frameSize;       // pixels needed to hold every mapped universe
+
+	UniverseMap() {
+		slot = new int[MAX_UNIVERSES];
+		Arrays.fill(slot,-1);
+		universe = new int[16];
+		offset = new int[16];
+		pixels = new int[16];
+		seen = new long[1];
+	}
+
+	/**
+	 * Maps a universe to a block of pixels. Remapping a universe replaces
+	 * its old mapping.
+	 * @param u universe number
+	 * @param first index of the first pixel in the universe
+	 * @param n number of pixels in the universe
+	 */
+	void map(int u,int first,int n) {
+		int i;
+
+		if ((u < 0) || (u >= MAX_UNIVERSES) || (first < 0) || (n <= 0)) return;
+
+		i = slot[u];
+		if (i < 0) {
+			i = count++;
+			if (i == universe.length) {
+				universe = Arrays.copyOf(universe,i * 2);
+				offset = Arrays.copyOf(offset,i * 2);
+				pixels = Arrays.copyOf(pixels,i * 2);
+			}
+			if ((i >> 6) >= seen.length) seen = Arrays.copyOf(seen,seen.length * 2);
+			slot[u] = i;
+		}
+		universe[i] = u;
+		offset[i] = first;
+		pixels[i] = n;
+		frameSize = Math.max(frameSize,first + n);
+		reset();
+	}
+
+	/**
+	 * Returns the index of a universe's mapping, or -1 if it isn't mapped.
+	 */
+	int lookup(int u) {
+		return ((u >= 0) && (u < MAX_UNIVERSES)) ? slot[u] : -1;
+	}
+
+	/**
+	 * Records the arrival of a mapped universe.
+	 * @return true if it had already arrived since the last reset(),
+	 * meaning the sender has started a new frame.
+	 */
+	boolean markReceived(int i) {
+		long bit = 1L << i;
+		if ((seen[i >> 6] & bit) != 0) return true;
+		seen[i >> 6] |= bit;
+		received++;
+		return false;
+	}
+
+	/**
+	 * True if every mapped universe has arrived since the last reset()
+	 */
+	boolean complete() {
+		return (count > 0) && (received == count);
+	}
+
+	/**
+	 * True if no mapped universe has arrived since the last reset()
+	 */
+	boolean empty() {
+		return received == 0;
+	}
+
+	/**
+	 * Starts tracking a new frame
+	 */
+	void reset() {
+		Arrays.fill(seen,0);
+		received = 0;
+	}
+}
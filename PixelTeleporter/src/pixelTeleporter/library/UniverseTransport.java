@@ -0,0 +1,90 @@
+package pixelTeleporter.library;
+
+/**
+ FOR INTERNAL USE:
+ <p>
+ Base class for DMX universe based transports (Art-Net, sACN).  Decodes
+ each mapped universe's pixel data straight from the receive buffer into its
+ block of pixels in the back buffer.  Universes that don't arrive in a
+ frame keep their previous contents.
+ <p>
+ If the sender synchronizes its universes, frames are published only when
+ the sync packet arrives, so all universes change together.  Without sync,
+ a frame is published as soon as every mapped universe has arrived, or
+ when a universe arrives a second time, which means the sender has
+ started a new frame (or some universes are not being sent.)  If sync
+ packets stop for a few seconds, we fall back to unsynchronized mode.
+*/
+abstract class UniverseTransport extends DatagramTransport {
+	// Time, in milliseconds, without a sync packet before we go back to
+	// publishing frames as universes arrive
+	final static int SYNC_TIMEOUT = 4000;
+
+	// Receiver thread only, once started
+	UniverseMap universes;
+	boolean syncMode;               // true if sender is synchronizing universes
+	int lastSync;                   // time of last sync packet
+
+	UniverseTransport(int port) {
+		super(port);
+		universes = new UniverseMap();
+	}
+
+	void mapUniverse(int universe,int first,int pixels) {
+		universes.map(universe,first,pixels);
+	}
+
+	/**
+	 * Maps n consecutive universes to consecutive blocks of pixels,
+	 * starting at pixel 0.
+	 */
+	void mapRange(int first,int n,int pixelsPerUniverse) {
+		for (int i = 0; i < n; i++) {
+			mapUniverse(first + i,i * pixelsPerUniverse,pixelsPerUniverse);
+		}
+	}
+
+	/**
+	 * Publishes the universes received so far as a frame, carrying
+	 * everything over to the new back buffer.
+	 */
+	void commit() {
+		frames.publishAndCopy(universes.frameSize);
+		universes.reset();
+	}
+
+	/**
+	 * Called when a sync packet arrives.  Publishes the universes
+	 * received since the last one.
+	 */
+	void receiveSync() {
+		syncMode = true;
+		lastSync = millis();
+		if (!universes.empty()) commit();
+	}
+
+	/**
+	 * Decodes a universe's data into its block of pixels, publishing
+	 * the frame if it's complete.
+	 * @param i index of the universe's mapping
+	 * @param offset position of the universe's data in the receive buffer
+	 * @param bytes number of bytes of data
+	 */
+	void receiveUniverse(int i,int offset,int bytes) {
+		if (syncMode && ((millis() - lastSync) > SYNC_TIMEOUT)) {
+			syncMode = false;
+		}
+
+		// A repeated universe means the sender has moved on to the next
+		// frame. If we're not syncing, publish what we have first.
+		if (universes.markReceived(i) && !syncMode) {
+			commit();
+			universes.markReceived(i);
+		}
+
+		bytes = Math.min(bytes,universes.pixels[i] * format.bytesPerPixel);
+		decodePixels(offset,bytes,frames.back(universes.frameSize),universes.offset[i]);
+
+		if (!syncMode && universes.complete()) commit();
+	}
+}
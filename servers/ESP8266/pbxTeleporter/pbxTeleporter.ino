@@ -62,6 +62,12 @@ uint64_t sendTimer = 0;
 #define MAX_PIXELS     2048                    // 8 channels x 256 pixels/channel
 uint8_t pixel_buffer[BUFFER_SIZE];             // per-pixel RGB data for current frame
 uint8_t incoming_buffer[256];                  // incoming requests for pixels
+uint8_t seq_header[4];                         // reply header for sequenced requests
+
+// client commands
+#define CMD_REQUEST_FRAME     0xF0             // reply with raw RGB frame data
+#define CMD_REQUEST_FRAME_SEQ 0xF1             // reply with header + RGB data. Bytes 1-2 of the
+                                               // request are a sequence number, echoed in the header
 uint8_t *pixel_ptr;                            // current write position in buffer
 
 ///////////////////////////////////////////////////////////////////////////////////////////
@@ -204,8 +210,17 @@ void doDrawAll() {
   int packetSize = Udp.parsePacket();
   if (packetSize) {   
     uint16_t data_size = pixel_ptr - pixel_buffer;    
+    int len = Udp.read(incoming_buffer,sizeof(incoming_buffer));
     if (data_size) {
       Udp.beginPacket(Udp.remoteIP(),DATA_OUT_PORT);
+      // sequenced request - echo sequence number in the reply header
+      if ((len >= 3) && (incoming_buffer[0] == CMD_REQUEST_FRAME_SEQ)) {
+        seq_header[0] = CMD_REQUEST_FRAME_SEQ;
+        seq_header[1] = 0;
+        seq_header[2] = incoming_buffer[1];
+        seq_header[3] = incoming_buffer[2];
+        Udp.write(seq_header,sizeof(seq_header));
+      }
       Udp.write(pixel_buffer,data_size);  
       Udp.endPacket(); 
     } 
@@ -19,6 +19,7 @@
 #include <signal.h>
 #include <sched.h>
 #include <time.h>
+#include <string.h>
 
 #include "pbxTeleporter.h"
 #include "pbxSerial.h"
@@ -32,10 +33,14 @@
 // Global variables -- handles, buffers and pointers
 int serialHandle = -1;                  // file descriptor for active serial device.
 udpServer *udp;                         // network server object
-uint8_t pixel_buffer[BUFFER_SIZE];      // per-pixel RGB data for current frame
-uint8_t *pixel_ptr;                     // current write position in buffer
-uint16_t pixelsReady;                   // number of pixels if frame is ready, 0 otherwise
+uint8_t pixel_buffer[BUFFER_SIZE];      // per-pixel RGB data for last complete frame. Guarded by frameLock
+uint8_t receive_buffer[BUFFER_SIZE];    // frame being read from the serial port
+uint8_t *pixel_ptr;                     // current write position in receive_buffer
+uint32_t pixelsReady;                   // bytes of pixel data if frame is ready, 0 otherwise
 int runFlag;                            // run status - 1 = keep running, 0 = shutdown
+uint16_t frameCount;                    // incremented each time a new frame is ready
+pthread_mutex_t frameLock = PTHREAD_MUTEX_INITIALIZER;   // protects frameCount and compressUntil
+pthread_cond_t frameReady = PTHREAD_COND_INITIALIZER;    // signaled on new frame
 
 /////////////////////////////////
 // Utility Functions
@@ -56,9 +61,9 @@ uint64_t getTickCount() {
 
 //
 // Reads the specified number of bytes into a buffer
-void readBytes(uint8_t *buf, uint16_t size) {
+void readBytes(uint8_t *buf, uint32_t size) {
 
-	for (int i = 0; i < size ;i++) {
+	for (uint32_t i = 0; i < size ;i++) {
 	  serialGetbyte(serialHandle,buf++);
 	}
 }
@@ -98,13 +103,14 @@ void crcCheck() {
 // if it's any other size.
 void doSetChannelWS2812() {
 	PBWS2812Channel ch;
-	uint16_t data_length;
+	uint32_t data_length;
 
 	readBytes((uint8_t *) &ch,sizeof(ch));
+	data_length = ch.pixels * ch.numElements;
 
-	// read pixel data if available
-	if (ch.pixels && (ch.numElements == 3) && (ch.pixels <= MAX_PIXELS)) {
-		data_length = ch.pixels * ch.numElements;
+	// read pixel data if available and there's room for it
+	if (ch.pixels && (ch.numElements == 3) &&
+	   (pixel_ptr + data_length <= receive_buffer + (MAX_PIXELS * 3))) {
 		readBytes(pixel_ptr,data_length);
 		pixel_ptr += data_length;
 	}
@@ -122,7 +128,7 @@ void doSetChannelAPA102() {
 	// contains a 3 bit flag and 5 bits of "extra" brightness data.
 	// We're gonna discard the "extra" APA bits and put 3-byte RGB
 	// data into the output buffer.
-	if (ch.frequency && (ch.pixels <= MAX_PIXELS)) {
+	if (ch.frequency && (pixel_ptr + (ch.pixels * 3) <= receive_buffer + (MAX_PIXELS * 3))) {
 		for (int i = 0; i < ch.pixels;i++) {
 			readOneByte();
 			readBytes(pixel_ptr,3);
@@ -134,10 +140,19 @@ void doSetChannelAPA102() {
 }
 
 // draw all pixels on all channels using current data
-// flags the frame as available to the network transport.
+// copies the received frame to pixel_buffer, flags it as available to
+// the network transport, and wakes the subscription push thread.  The
+// next frame is read into receive_buffer, so readers holding frameLock
+// always see a whole frame.
 void doDrawAll() {
-	pixelsReady = (pixel_ptr - pixel_buffer);
-	pixel_ptr = pixel_buffer;
+	pthread_mutex_lock(&frameLock);
+	pixelsReady = (pixel_ptr - receive_buffer);
+	memcpy(pixel_buffer,receive_buffer,pixelsReady);
+	frameCount++;
+	pthread_cond_broadcast(&frameReady);
+	pthread_mutex_unlock(&frameLock);
+
+	pixel_ptr = receive_buffer;
 }
 
 // read APA 102 clock data.  
@@ -167,7 +182,8 @@ bool setup(int argc, char *argv[]) {
 // initialize and enable the main loop
 	runFlag = 1;
 	pixelsReady = 0;
-	pixel_ptr = pixel_buffer;
+	frameCount = 0;
+	pixel_ptr = receive_buffer;
 
 // set defaults for parameters
 	arguments.serial_port = "";
@@ -14,8 +14,10 @@
 */
 #ifndef __pbxteleporter_h__
 #define __pbxteleporter_h__
+#include <stdint.h>
+#include <pthread.h>
 
-#define MAX_PIXELS     4096
+#define MAX_PIXELS     65536
 #define RCV_BITRATE    2000000L           // bits/sec coming from pixelblaze
 #define BUFFER_SIZE    (256+(MAX_PIXELS * 3))
 #define DEFAULT_LISTEN_PORT 8081          // default UDP ports
@@ -63,7 +65,12 @@ typedef struct {
 
 // global variables
 extern int runFlag;
-extern uint16_t pixelsReady;
+extern uint32_t pixelsReady;
 extern uint8_t pixel_buffer[];
+extern uint16_t frameCount;
+extern pthread_mutex_t frameLock;
+extern pthread_cond_t frameReady;
+
+uint64_t getTickCount();
 
 #endif /* __pbxteleporter_h__ */
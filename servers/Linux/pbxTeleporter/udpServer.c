@@ -47,6 +47,11 @@ udpServer *createUdpServer(char *bind_addr, int listen_port, int send_port) {
   udp->clientlen = sizeof(struct sockaddr_in);
   udp->listen_port = listen_port;
   udp->send_port = send_port;
+  memset(udp->subscribers, 0, sizeof(udp->subscribers));
+  pthread_mutex_init(&udp->sublock, NULL);
+  memset(&udp->history, 0, sizeof(udp->history));
+  pthread_mutex_init(&udp->histlock, NULL);
+  udp->compressUntil = 0;
 	
 // open socket	
   udp->fd = socket(AF_INET, SOCK_DGRAM, 0);
@@ -81,8 +86,9 @@ udpServer *createUdpServer(char *bind_addr, int listen_port, int send_port) {
     return NULL;
   }
 
-// create listener thead
+// create listener and subscription push theads
   pthread_create(&udp->pt, NULL, &udpThread, (void*) udp);
+  pthread_create(&udp->push_pt, NULL, &udpPushThread, (void*) udp);
 
   return udp;   	
 }
@@ -101,6 +107,303 @@ int udpServerSend(udpServer *udp, uint8_t *sendbuf,size_t bufsize) {
 		(struct sockaddr*)&udp->client, udp->clientlen);
 }
 
+// send header and data to the specified address as a single datagram
+// without copying them into a common buffer
+int udpServerSendFrame(udpServer *udp, struct sockaddr_in *addr, uint8_t *hdr, size_t hdrsize,
+                       uint8_t *sendbuf,size_t bufsize) {
+	struct iovec iov[2];
+	struct msghdr msg;
+
+	iov[0].iov_base = hdr;
+	iov[0].iov_len = hdrsize;
+	iov[1].iov_base = sendbuf;
+	iov[1].iov_len = bufsize;
+
+	memset(&msg, 0, sizeof(msg));
+	msg.msg_name = addr;
+	msg.msg_namelen = sizeof(struct sockaddr_in);
+	msg.msg_iov = iov;
+	msg.msg_iovlen = 2;
+
+	return sendmsg(udp->fd, &msg, 0);
+}
+
+// send a frame of pixel data with a sequenced reply header.  Frames larger than
+// SINGLE_FRAME_BYTES are split into CHUNK_PIXELS sized chunks, each with
+// a chunk header so the client can reassemble them.
+int udpServerSendPixels(udpServer *udp, struct sockaddr_in *addr, uint8_t cmd, uint16_t seq,
+                        uint8_t *sendbuf, size_t bufsize) {
+	uint8_t hdr[CHUNK_HEADER_SIZE];
+	uint32_t total, offset, n;
+	uint16_t count;
+
+	hdr[0] = cmd;
+	hdr[2] = seq >> 8;
+	hdr[3] = seq & 0xFF;
+
+	if (bufsize <= SINGLE_FRAME_BYTES) {
+		hdr[1] = 0;
+		return udpServerSendFrame(udp,addr,hdr,SEQ_HEADER_SIZE,sendbuf,bufsize);
+	}
+
+	hdr[1] = FLAG_CHUNKED;
+	total = bufsize / 3;
+	count = (total + CHUNK_PIXELS - 1) / CHUNK_PIXELS;
+	hdr[6] = count >> 8;
+	hdr[7] = count & 0xFF;
+	hdr[12] = total >> 24;
+	hdr[13] = (total >> 16) & 0xFF;
+	hdr[14] = (total >> 8) & 0xFF;
+	hdr[15] = total & 0xFF;
+
+	for (uint16_t i = 0; i < count; i++) {
+		offset = i * CHUNK_PIXELS;
+		n = (total - offset < CHUNK_PIXELS) ? total - offset : CHUNK_PIXELS;
+
+		hdr[4] = i >> 8;
+		hdr[5] = i & 0xFF;
+		hdr[8] = offset >> 24;
+		hdr[9] = (offset >> 16) & 0xFF;
+		hdr[10] = (offset >> 8) & 0xFF;
+		hdr[11] = offset & 0xFF;
+
+		if (udpServerSendFrame(udp,addr,hdr,CHUNK_HEADER_SIZE,sendbuf + (offset * 3),n * 3) < 0) {
+			return -1;
+		}
+	}
+	return bufsize;
+}
+
+// run length encode pixels, XOR'd with the corresponding base pixels if base isn't
+// NULL, until we run out of pixels or output space.  Returns bytes written, and sets
+// *used to the number of pixels encoded.
+uint32_t rleEncode(const uint8_t *cur, const uint8_t *base, uint32_t pixels,
+                   uint8_t *out, uint32_t outsize, uint32_t *used) {
+	uint32_t i = 0, o = 0, n, j;
+	uint8_t px[3], nx[3];
+
+#define PIXEL_AT(dst,k) do { \
+		dst[0] = cur[(k)*3];   dst[1] = cur[(k)*3+1];   dst[2] = cur[(k)*3+2]; \
+		if (base) { dst[0] ^= base[(k)*3]; dst[1] ^= base[(k)*3+1]; dst[2] ^= base[(k)*3+2]; } \
+	} while (0)
+
+	while ((i < pixels) && (outsize - o >= 4)) {
+		// measure the run starting here
+		PIXEL_AT(px,i);
+		n = 1;
+		while ((i + n < pixels) && (n < 128)) {
+			PIXEL_AT(nx,i + n);
+			if (memcmp(px,nx,3) != 0) break;
+			n++;
+		}
+
+		if (n >= 2) {
+			out[o++] = 0x80 | (n - 1);
+			memcpy(out + o,px,3);
+			o += 3;
+			i += n;
+			continue;
+		}
+
+		// literal: take pixels until the next run of 3 or more, the
+		// 128 pixel limit or the end of the output buffer
+		n = 0;
+		while ((i + n < pixels) && (n < 128) && (outsize - o >= 1 + 3 * (n + 1))) {
+			if (i + n + 2 < pixels) {
+				PIXEL_AT(px,i + n);
+				PIXEL_AT(nx,i + n + 1);
+				if (memcmp(px,nx,3) == 0) {
+					PIXEL_AT(nx,i + n + 2);
+					if ((memcmp(px,nx,3) == 0) && (n > 0)) break;
+				}
+			}
+			n++;
+		}
+		out[o++] = n - 1;
+		for (j = 0; j < n; j++) {
+			PIXEL_AT(px,i + j);
+			memcpy(out + o,px,3);
+			o += 3;
+		}
+		i += n;
+	}
+#undef PIXEL_AT
+
+	*used = i;
+	return o;
+}
+
+// encode a frame, optionally as a delta against base, into SEGMENT_BYTES sized
+// segments that can each be decoded on their own
+void udpEncodeFrame(udpEncoder *enc, const uint8_t *cur, const uint8_t *base, uint32_t pixels) {
+	uint32_t done = 0, pos = 0, used, bytes;
+
+	enc->segments = 0;
+	while ((done < pixels) && (enc->segments < MAX_SEGMENTS)) {
+		bytes = rleEncode(cur + done * 3,base ? base + done * 3 : NULL,pixels - done,
+		                  enc->out + pos,SEGMENT_BYTES,&used);
+		enc->segOffset[enc->segments] = done;
+		enc->segPixels[enc->segments] = used;
+		enc->segStart[enc->segments] = pos;
+		enc->segBytes[enc->segments] = bytes;
+		enc->segments++;
+		done += used;
+		pos += bytes;
+	}
+}
+
+static void put16(uint8_t *p, uint16_t v) {
+	p[0] = v >> 8;
+	p[1] = v & 0xFF;
+}
+
+static void put32(uint8_t *p, uint32_t v) {
+	p[0] = v >> 24;
+	p[1] = (v >> 16) & 0xFF;
+	p[2] = (v >> 8) & 0xFF;
+	p[3] = v & 0xFF;
+}
+
+// send an encoded frame with a compression header, as a single datagram if
+// it's just one segment, otherwise as chunks
+int udpServerSendEncoded(udpServer *udp, struct sockaddr_in *addr, uint8_t cmd, uint16_t seq,
+                         udpEncoder *enc, uint8_t flags, uint16_t id, uint16_t base, uint32_t total) {
+	uint8_t hdr[CHUNK_HEADER_SIZE + COMP_HEADER_SIZE];
+	uint8_t *comp;
+	size_t hdrsize;
+
+	hdr[0] = cmd;
+	put16(hdr + 2,seq);
+	if (enc->segments == 1) {
+		hdr[1] = flags;
+		comp = hdr + SEQ_HEADER_SIZE;
+		hdrsize = SEQ_HEADER_SIZE + COMP_HEADER_SIZE;
+	}
+	else {
+		hdr[1] = flags | FLAG_CHUNKED;
+		put16(hdr + 6,enc->segments);
+		put32(hdr + 12,total);
+		comp = hdr + CHUNK_HEADER_SIZE;
+		hdrsize = CHUNK_HEADER_SIZE + COMP_HEADER_SIZE;
+	}
+	put16(comp,id);
+	put16(comp + 2,base);
+
+	for (int i = 0; i < enc->segments; i++) {
+		if (enc->segments > 1) {
+			put16(hdr + 4,i);
+			put32(hdr + 8,enc->segOffset[i]);
+		}
+		put32(comp + 4,enc->segPixels[i]);
+		if (udpServerSendFrame(udp,addr,hdr,hdrsize,enc->out + enc->segStart[i],enc->segBytes[i]) < 0) {
+			return -1;
+		}
+	}
+	return total * 3;
+}
+
+udpEncoder *createEncoder() {
+	udpEncoder *enc = (udpEncoder *) malloc(sizeof(udpEncoder));
+	enc->out = (uint8_t *) malloc(MAX_SEGMENTS * SEGMENT_BYTES);
+	enc->segments = 0;
+	return enc;
+}
+
+void destroyEncoder(udpEncoder *enc) {
+	free(enc->out);
+	free(enc);
+}
+
+// save a copy of a frame as a possible delta base. Call with histlock held.
+void udpHistoryRecord(udpServer *udp, uint16_t id, uint8_t *pixels, uint32_t size) {
+	udpHistory *h = &udp->history;
+	int slot = (h->count == 0) ? 0 : (h->newest + 1) % HISTORY_FRAMES;
+
+	if (h->pixels[slot] == NULL) h->pixels[slot] = (uint8_t *) malloc(MAX_PIXELS * 3);
+	memcpy(h->pixels[slot],pixels,size);
+	h->size[slot] = size;
+	h->id[slot] = id;
+	h->newest = slot;
+	if (h->count < HISTORY_FRAMES) h->count++;
+}
+
+// returns the history slot holding frame id, or -1. Call with histlock held.
+int udpHistoryFind(udpServer *udp, uint16_t id) {
+	udpHistory *h = &udp->history;
+	int slot;
+
+	for (int i = 0; i < h->count; i++) {
+		slot = (h->newest - i + HISTORY_FRAMES) % HISTORY_FRAMES;
+		if (h->id[slot] == id) return slot;
+	}
+	return -1;
+}
+
+// send the newest frame in history to a client, as a delta against the client's
+// base frame if we still have it and it's the same size, otherwise as an RLE
+// keyframe.  Returns -1 if there's no history yet. Call with histlock held.
+int udpServerSendCompressed(udpServer *udp, udpEncoder *enc, struct sockaddr_in *addr,
+                            uint8_t cmd, uint16_t seq, int haveBase, uint16_t baseId) {
+	udpHistory *h = &udp->history;
+	int cur = h->newest, base = -1;
+
+	if (h->count == 0) return -1;
+	if (haveBase) base = udpHistoryFind(udp,baseId);
+	if ((base >= 0) && (h->size[base] != h->size[cur])) base = -1;
+
+	udpEncodeFrame(enc,h->pixels[cur],(base >= 0) ? h->pixels[base] : NULL,h->size[cur] / 3);
+	return udpServerSendEncoded(udp,addr,cmd,seq,enc,
+	                            (base >= 0) ? FLAG_RLE | FLAG_DELTA : FLAG_RLE,
+	                            h->id[cur],(base >= 0) ? baseId : 0,h->size[cur] / 3);
+}
+
+// true if two addresses are the same client -- same IP address and port
+static int udpSameClient(struct sockaddr_in *a, struct sockaddr_in *b) {
+	return (a->sin_addr.s_addr == b->sin_addr.s_addr) && (a->sin_port == b->sin_port);
+}
+
+// add client to the subscriber list, or renew its lease if it's
+// already there. Clients are identified by IP address and port, so
+// several can run on one host, and frames are pushed to the port the
+// subscription came from.
+void udpServerSubscribe(udpServer *udp, struct sockaddr_in *addr, int lease, int flags) {
+	udpSubscriber *sub, *slot = NULL;
+
+	pthread_mutex_lock(&udp->sublock);
+	for (int i = 0; i < MAX_SUBSCRIBERS; i++) {
+		sub = &udp->subscribers[i];
+		if (sub->active && udpSameClient(&sub->addr,addr)) {
+			slot = sub;
+			break;
+		}
+		if (!sub->active && (slot == NULL)) slot = sub;
+	}
+
+	if (slot != NULL) {
+		if (!slot->active) {
+			printf("pbxTeleporter: new subscriber ");
+			_debugPrintAddress(addr);
+		}
+		slot->addr = *addr;
+		slot->expires = getTickCount() + lease;
+		// a client without a usable base frame needs a keyframe
+		if (!slot->active || !(flags & REQ_HAVE_BASE)) slot->needKey = 1;
+		slot->compress = flags & REQ_COMPRESS;
+		slot->active = 1;
+	}
+	pthread_mutex_unlock(&udp->sublock);
+}
+
+void udpServerUnsubscribe(udpServer *udp, struct sockaddr_in *addr) {
+	pthread_mutex_lock(&udp->sublock);
+	for (int i = 0; i < MAX_SUBSCRIBERS; i++) {
+		if (udp->subscribers[i].active && udpSameClient(&udp->subscribers[i].addr,addr)) {
+			udp->subscribers[i].active = 0;
+		}
+	}
+	pthread_mutex_unlock(&udp->sublock);
+}
+
 void destroyUdpServer(udpServer *udp) {
   pthread_join(udp->pt, NULL);
   if (udp != NULL) {
@@ -108,15 +411,37 @@ void destroyUdpServer(udpServer *udp) {
   }
 }
 
+// copies the newest complete frame into dest, a buffer of at least
+// MAX_PIXELS * 3 bytes, and returns its size.  Also returns the frame
+// number if frame isn't NULL.
+static uint32_t udpCopyFrame(uint8_t *dest, uint16_t *frame) {
+	uint32_t size;
+
+	pthread_mutex_lock(&frameLock);
+	size = pixelsReady;
+	memcpy(dest,pixel_buffer,size);
+	if (frame != NULL) *frame = frameCount;
+	pthread_mutex_unlock(&frameLock);
+	return size;
+}
+
 // UDP Server thread function. Once data becomes available, does a blocking
 // listen for requests, and forwards the pixel data when it gets one. Net
 // data rate is decoupled from Pixelblaze frame rate, and multiple clients
 // are supported, although you're gonna need a sturdy router for that...
+// Sequenced requests (CMD_REQUEST_FRAME_SEQ) get a short header echoing the
+// request's sequence number, so clients can keep several requests in flight
+// and discard stale replies.  Subscribe/unsubscribe commands update the
+// list of clients for udpPushThread.  Anything else gets the classic
+// raw RGB reply.
 // TODO - implement protocol for virtual wiring
 void *udpThread(void *arg) {
 	uint8_t incoming_buffer[UDP_INBUFSIZE];
 	udpServer *udp = (udpServer *) arg;
-	int res;
+	udpEncoder *enc = createEncoder();
+	uint8_t *pixels = (uint8_t *) malloc(MAX_PIXELS * 3);
+	uint32_t size;
+	int res, flags, sent;
 
 	pthread_detach(pthread_self());
 
@@ -124,11 +449,139 @@ void *udpThread(void *arg) {
 		if (pixelsReady > 0) {
 			res = udpServerListen(udp,incoming_buffer,UDP_INBUFSIZE);
 
-			if (res > 0) {
-				udpServerSend(udp,pixel_buffer,pixelsReady);
+			flags = (res >= 6) ? incoming_buffer[3] : 0;
+			if (flags & REQ_COMPRESS) {
+				pthread_mutex_lock(&frameLock);
+				udp->compressUntil = getTickCount() + COMPRESS_TIMEOUT;
+				pthread_mutex_unlock(&frameLock);
+			}
+
+			if ((res >= 3) && (incoming_buffer[0] == CMD_REQUEST_FRAME_SEQ)) {
+				udp->client.sin_port = htons(udp->send_port);
+				sent = -1;
+				if (flags & REQ_COMPRESS) {
+					pthread_mutex_lock(&udp->histlock);
+					sent = udpServerSendCompressed(udp,enc,&udp->client,CMD_REQUEST_FRAME_SEQ,
+					                               (incoming_buffer[1] << 8) | incoming_buffer[2],
+					                               flags & REQ_HAVE_BASE,
+					                               (incoming_buffer[4] << 8) | incoming_buffer[5]);
+					pthread_mutex_unlock(&udp->histlock);
+				}
+				// uncompressed, or no history yet
+				if (sent < 0) {
+					size = udpCopyFrame(pixels,NULL);
+					udpServerSendPixels(udp,&udp->client,CMD_REQUEST_FRAME_SEQ,
+					                    (incoming_buffer[1] << 8) | incoming_buffer[2],
+					                    pixels,size);
+				}
+			}
+			else if ((res >= 3) && (incoming_buffer[0] == CMD_SUBSCRIBE)) {
+				udpServerSubscribe(udp,&udp->client,(incoming_buffer[1] << 8) | incoming_buffer[2],flags);
+			}
+			else if ((res > 0) && (incoming_buffer[0] == CMD_UNSUBSCRIBE)) {
+				udpServerUnsubscribe(udp,&udp->client);
+			}
+			// classic clients can only take a single datagram
+			else if (res > 0) {
+				size = udpCopyFrame(pixels,NULL);
+				udpServerSend(udp,pixels,(size > SINGLE_FRAME_BYTES) ? SINGLE_FRAME_BYTES : size);
+			}
+		}
+	}
+
+	free(pixels);
+	destroyEncoder(enc);
+	pthread_exit(NULL);
+}
+
+// Subscription push thread.  Sleeps until the serial reader signals that a
+// new frame is ready, then sends it to every subscriber whose lease hasn't
+// run out. Frames are sent with the same header as sequenced replies, using
+// the frame number as the sequence number.
+// While any client is using compression, each frame is also saved in the
+// history.  Compressing subscribers get a delta against the previous frame,
+// or a keyframe when they've lost sync or every KEYFRAME_INTERVAL frames.
+// Each kind of encoding is done at most once per frame.  The frame is
+// copied out under frameLock first, so history and subscribers all get
+// exactly the frame numbered frame, even if the next one has arrived.
+void *udpPushThread(void *arg) {
+	udpServer *udp = (udpServer *) arg;
+	udpEncoder *keyEnc = createEncoder();
+	udpEncoder *deltaEnc = createEncoder();
+	uint8_t *snapshot = (uint8_t *) malloc(MAX_PIXELS * 3);
+	uint16_t frame, lastFrame;
+	uint32_t size, pixels;
+	struct timespec ts;
+	uint64_t now;
+	udpSubscriber *sub;
+	int compress, haveKey, haveDelta, base, cur;
+
+	pthread_detach(pthread_self());
+
+	pthread_mutex_lock(&frameLock);
+	lastFrame = frameCount;
+	pthread_mutex_unlock(&frameLock);
+
+	while (runFlag) {
+		// wait for a new frame, checking now and then for shutdown
+		pthread_mutex_lock(&frameLock);
+		while (runFlag && (frameCount == lastFrame)) {
+			clock_gettime(CLOCK_REALTIME, &ts);
+			ts.tv_sec += 1;
+			pthread_cond_timedwait(&frameReady, &frameLock, &ts);
+		}
+		now = getTickCount();
+		compress = (now < udp->compressUntil);
+		pthread_mutex_unlock(&frameLock);
+
+		// the frame count may move on between the wait and the copy, but
+		// frame is always the number of the frame copied
+		size = udpCopyFrame(snapshot,&frame);
+		if (frame == lastFrame) continue;
+
+		pixels = size / 3;
+		pthread_mutex_lock(&udp->histlock);
+		if (compress) udpHistoryRecord(udp,frame,snapshot,size);
+		cur = udp->history.newest;
+		base = compress ? udpHistoryFind(udp,lastFrame) : -1;
+		if ((base >= 0) && (udp->history.size[base] != size)) base = -1;
+		haveKey = haveDelta = 0;
+
+		pthread_mutex_lock(&udp->sublock);
+		for (int i = 0; i < MAX_SUBSCRIBERS; i++) {
+			sub = &udp->subscribers[i];
+			if (!sub->active) continue;
+
+			if (now > sub->expires) {
+				sub->active = 0;
+				continue;
+			}
+
+			if (!compress || !sub->compress) {
+				udpServerSendPixels(udp,&sub->addr,CMD_SUBSCRIBE,frame,snapshot,size);
+			}
+			else if (sub->needKey || (base < 0) || (sub->sinceKey >= KEYFRAME_INTERVAL)) {
+				if (!haveKey) udpEncodeFrame(keyEnc,udp->history.pixels[cur],NULL,pixels);
+				haveKey = 1;
+				udpServerSendEncoded(udp,&sub->addr,CMD_SUBSCRIBE,frame,keyEnc,FLAG_RLE,frame,0,pixels);
+				sub->needKey = 0;
+				sub->sinceKey = 0;
+			}
+			else {
+				if (!haveDelta) udpEncodeFrame(deltaEnc,udp->history.pixels[cur],udp->history.pixels[base],pixels);
+				haveDelta = 1;
+				udpServerSendEncoded(udp,&sub->addr,CMD_SUBSCRIBE,frame,deltaEnc,FLAG_RLE | FLAG_DELTA,
+				                     frame,lastFrame,pixels);
+				sub->sinceKey++;
 			}
 		}
+		pthread_mutex_unlock(&udp->sublock);
+		pthread_mutex_unlock(&udp->histlock);
+		lastFrame = frame;
 	}
 
+	free(snapshot);
+	destroyEncoder(keyEnc);
+	destroyEncoder(deltaEnc);
 	pthread_exit(NULL);
 }
@@ -24,6 +24,78 @@
 #include <netinet/in.h>
 #include <arpa/inet.h>
 #include <pthread.h>
+#include <sys/uio.h>
+#include <time.h>
+#include "pbxTeleporter.h"
+
+// client commands
+#define CMD_REQUEST_FRAME     0xF0        // reply with raw RGB frame data
+#define CMD_REQUEST_FRAME_SEQ 0xF1        // reply with header + RGB frame data. Bytes 1-2 are
+                                          // a sequence number, which is echoed in the header
+#define CMD_SUBSCRIBE         0xF2        // push frames to client as they arrive. Bytes 1-2 are
+                                          // the lease time in milliseconds.  Pushed frames have
+                                          // a header with the frame number as sequence number.
+#define CMD_UNSUBSCRIBE       0xF3        // stop pushing frames to client
+#define SEQ_HEADER_SIZE       4           // command, flags, sequence number (big endian)
+
+// Frames too large for one datagram are sent as a series of chunks. Chunks have an
+// extended header - chunk index(2), chunk count(2), pixel offset(4), total pixels(4), all
+// big endian - and the FLAG_CHUNKED bit set in the flags byte.
+#define FLAG_CHUNKED          0x01
+#define CHUNK_HEADER_SIZE     16
+#define CHUNK_PIXELS          480         // 1440 bytes + header fits in a 1500 byte MTU
+#define SINGLE_FRAME_BYTES    (4096 * 3)  // largest frame sent as a single datagram
+
+#define MAX_SUBSCRIBERS       8           // max simultaneous clients in push mode
+
+// Compressed frames. Clients that can decode them set REQ_COMPRESS in byte 3 of
+// CMD_REQUEST_FRAME_SEQ and CMD_SUBSCRIBE.  If they also set REQ_HAVE_BASE, bytes 4-5
+// are the id of the last complete compressed frame they received (big endian).
+//
+// Compressed replies set FLAG_RLE, and FLAG_DELTA if the pixels are XOR'd with the base
+// frame.  After the sequence (and chunk) header comes a compression header - frame id(2),
+// base id(2), pixels in this datagram(4) - then run length encoded pixels.  Each RLE
+// control byte is either a run - 0x80 | (n-1), followed by one RGB pixel repeated n
+// times - or a literal - (n-1), followed by n RGB pixels.  Compressed frames are split
+// into MTU sized segments, sent as chunks if there is more than one.
+#define REQ_COMPRESS          0x01
+#define REQ_HAVE_BASE         0x02
+#define FLAG_RLE              0x02
+#define FLAG_DELTA            0x04
+#define COMP_HEADER_SIZE      8
+#define SEGMENT_BYTES         (CHUNK_PIXELS * 3)
+#define MAX_SEGMENTS          ((MAX_PIXELS / 256) + 1)
+#define HISTORY_FRAMES        8           // recent frames kept as delta bases
+#define KEYFRAME_INTERVAL     60          // pushed frames between forced keyframes
+#define COMPRESS_TIMEOUT      10000       // ms to keep history after last compressing client
+
+typedef struct _udpSubscriber {
+  struct sockaddr_in addr;
+  uint64_t expires;                       // tick count at which the lease runs out
+  int active;
+  int compress;                           // client decodes compressed frames
+  int needKey;                            // client has no usable base frame
+  int sinceKey;                           // frames pushed since last keyframe
+} udpSubscriber;
+
+// ring of recently sent frames, used as bases for delta compression
+typedef struct _udpHistory {
+  uint8_t *pixels[HISTORY_FRAMES];
+  uint32_t size[HISTORY_FRAMES];          // bytes of pixel data
+  uint16_t id[HISTORY_FRAMES];
+  int count;                              // valid entries
+  int newest;                             // index of most recent entry
+} udpHistory;
+
+// output of the frame encoder: RLE data and the segments it's split into
+typedef struct _udpEncoder {
+  uint8_t *out;
+  uint32_t segOffset[MAX_SEGMENTS];       // first pixel in segment
+  uint32_t segPixels[MAX_SEGMENTS];       // pixels in segment
+  uint32_t segStart[MAX_SEGMENTS];        // offset of segment's data in out
+  uint32_t segBytes[MAX_SEGMENTS];        // bytes of encoded data in segment
+  int segments;
+} udpEncoder;
 
 typedef struct _udpServer {
   int listen_port;
@@ -33,13 +105,37 @@ typedef struct _udpServer {
   struct sockaddr_in client;   
   int clientlen;  
   pthread_t pt;
+  pthread_t push_pt;
+  pthread_mutex_t sublock;                // protects subscriber list
+  udpSubscriber subscribers[MAX_SUBSCRIBERS];
+  pthread_mutex_t histlock;               // protects history
+  udpHistory history;
+  uint64_t compressUntil;                 // keep history until this tick count. Guarded by frameLock
 } udpServer;
 
 void _debugPrintAddress(struct sockaddr_in *addr);
 udpServer *createUdpServer(char *bind_addr, int listen_port, int send_port);
 int udpServerListen(udpServer *udp,uint8_t *rcvbuf,size_t bufsize);
 int udpServerSend(udpServer *udp, uint8_t *sendbuf,size_t bufsize);
+int udpServerSendFrame(udpServer *udp, struct sockaddr_in *addr, uint8_t *hdr, size_t hdrsize,
+                       uint8_t *sendbuf,size_t bufsize);
+int udpServerSendPixels(udpServer *udp, struct sockaddr_in *addr, uint8_t cmd, uint16_t seq,
+                        uint8_t *sendbuf, size_t bufsize);
+uint32_t rleEncode(const uint8_t *cur, const uint8_t *base, uint32_t pixels,
+                   uint8_t *out, uint32_t outsize, uint32_t *used);
+void udpEncodeFrame(udpEncoder *enc, const uint8_t *cur, const uint8_t *base, uint32_t pixels);
+int udpServerSendEncoded(udpServer *udp, struct sockaddr_in *addr, uint8_t cmd, uint16_t seq,
+                         udpEncoder *enc, uint8_t flags, uint16_t id, uint16_t base, uint32_t total);
+void udpHistoryRecord(udpServer *udp, uint16_t id, uint8_t *pixels, uint32_t size);
+int udpHistoryFind(udpServer *udp, uint16_t id);
+udpEncoder *createEncoder();
+void destroyEncoder(udpEncoder *enc);
+int udpServerSendCompressed(udpServer *udp, udpEncoder *enc, struct sockaddr_in *addr,
+                            uint8_t cmd, uint16_t seq, int haveBase, uint16_t baseId);
+void udpServerSubscribe(udpServer *udp, struct sockaddr_in *addr, int lease, int flags);
+void udpServerUnsubscribe(udpServer *udp, struct sockaddr_in *addr);
 void destroyUdpServer(udpServer *udp);
 void *udpThread(void *arg);
+void *udpPushThread(void *arg);
 
 #endif